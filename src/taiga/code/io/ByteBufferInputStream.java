@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.code.io;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} that reads directly from a {@link ByteBuffer}.  This
+ * allows stream based decoders to read from direct or memory mapped buffers
+ * without first copying the contents into an array.
+ * 
+ * @author russell
+ */
+public class ByteBufferInputStream extends InputStream {
+
+  /**
+   * Creates a new {@link ByteBufferInputStream} that reads the remaining bytes
+   * of the given {@link ByteBuffer}.  The position of the {@link ByteBuffer}
+   * is advanced as bytes are read.
+   * 
+   * @param buffer The {@link ByteBuffer} to read from.
+   */
+  public ByteBufferInputStream(ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+  
+  @Override
+  public int read() {
+    if(!buffer.hasRemaining()) return -1;
+    
+    return buffer.get() & 0xFF;
+  }
+  
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if(len == 0) return 0;
+    if(!buffer.hasRemaining()) return -1;
+    
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    
+    return len;
+  }
+  
+  @Override
+  public long skip(long n) {
+    int amt = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + amt);
+    
+    return amt;
+  }
+  
+  @Override
+  public int available() {
+    return buffer.remaining();
+  }
+  
+  private final ByteBuffer buffer;
+}
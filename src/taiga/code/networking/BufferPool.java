@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package taiga.code.networking;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A pool of direct {@link ByteBuffer}s for network I/O.  Direct buffers are
+ * expensive to create and are only freed by the garbage collector, so buffers
+ * for connections and messages are taken from and returned to a {@link BufferPool}
+ * instead of being created each time.
+ * 
+ * Buffers are grouped by their capacity, which is always a power of two.  Only
+ * a limited number of buffers of each size are kept, and requests for more
+ * than the largest size are simply allocated.
+ * 
+ * @author russell
+ */
+public final class BufferPool {
+  
+  /**
+   * A {@link BufferPool} shared by all of the network code.
+   */
+  public static final BufferPool SHARED = new BufferPool(BufferPool.DEFAULT_RETAINED);
+  
+  /**
+   * Creates a new empty {@link BufferPool}.
+   * 
+   * @param retained The maximum number of buffers of each size to keep.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(int retained) {
+    this.retained = retained;
+    
+    int classes = MAX_SHIFT - MIN_SHIFT + 1;
+    free = new ConcurrentLinkedQueue[classes];
+    counts = new AtomicIntegerArray(classes);
+    
+    for(int i = 0; i < classes; i++)
+      free[i] = new ConcurrentLinkedQueue<>();
+  }
+  
+  /**
+   * Returns a cleared direct {@link ByteBuffer} with at least the given capacity.
+   * The buffer should be returned with {@link #release(java.nio.ByteBuffer)}
+   * once it is no longer used.
+   * 
+   * @param capacity The minimum capacity of the buffer.
+   * @return A {@link ByteBuffer} from this {@link BufferPool}.
+   */
+  public ByteBuffer acquire(int capacity) {
+    int shift = getShift(capacity);
+    if(shift > MAX_SHIFT) return ByteBuffer.allocateDirect(capacity);
+    
+    int cls = shift - MIN_SHIFT;
+    ByteBuffer result = free[cls].poll();
+    
+    if(result == null) return ByteBuffer.allocateDirect(1 << shift);
+    
+    counts.decrementAndGet(cls);
+    result.clear();
+    
+    return result;
+  }
+  
+  /**
+   * Returns a {@link ByteBuffer} to this {@link BufferPool}.  Buffers that
+   * were not created by a {@link BufferPool} are ignored.  The buffer must
+   * not be used after it has been released.
+   * 
+   * @param buf The {@link ByteBuffer} to return.
+   */
+  public void release(ByteBuffer buf) {
+    int capacity = buf.capacity();
+    if(!buf.isDirect() || Integer.bitCount(capacity) != 1) return;
+    
+    int shift = Integer.numberOfTrailingZeros(capacity);
+    if(shift < MIN_SHIFT || shift > MAX_SHIFT) return;
+    
+    int cls = shift - MIN_SHIFT;
+    if(counts.incrementAndGet(cls) > retained) {
+      counts.decrementAndGet(cls);
+      return;
+    }
+    
+    free[cls].offer(buf);
+  }
+  
+  private final int retained;
+  private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+  //number of buffers in each queue, the queues do not track their size cheaply.
+  private final AtomicIntegerArray counts;
+  
+  private static int getShift(int capacity) {
+    if(capacity <= 1 << MIN_SHIFT) return MIN_SHIFT;
+    
+    return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+  }
+  
+  private static final int MIN_SHIFT = 12;
+  private static final int MAX_SHIFT = 24;
+  private static final int DEFAULT_RETAINED = 64;
+}
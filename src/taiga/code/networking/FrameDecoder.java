@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package taiga.code.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes read from a single connection into the messages described
+ * by {@link Framing}.  Reads may end anywhere in a message or contain several
+ * messages, so the bytes are kept in a buffer until a whole message is
+ * available and each message is handed out as a view of that buffer.
+ * 
+ * The buffer is taken from a {@link BufferPool} and is only replaced with a
+ * larger one when a message does not fit, so decoding does not create any
+ * objects for each message.  Unread bytes are moved back to the front of the
+ * buffer only when there is not enough room after them.
+ * 
+ * @author russell
+ */
+public final class FrameDecoder {
+  
+  /**
+   * Receives the messages found by a {@link FrameDecoder}.
+   */
+  public interface FrameHandler {
+  
+    /**
+     * Called for each complete message.  The position and limit of the payload
+     * mark the bounds of the message, and it is only valid until this method
+     * returns.
+     * 
+     * @param sysid The id of the object the message is for.
+     * @param payload A view of the message.
+     */
+    public void frameReceived(short sysid, ByteBuffer payload);
+  }
+  
+  /**
+   * Creates a new {@link FrameDecoder} that takes its buffers from the given
+   * {@link BufferPool}.
+   * 
+   * @param pool The {@link BufferPool} for the buffers.
+   * @param handler The {@link FrameHandler} for the decoded messages.
+   */
+  public FrameDecoder(BufferPool pool, FrameHandler handler) {
+    this.pool = pool;
+    this.handler = handler;
+    
+    setBuffer(pool.acquire(DEFAULT_CAPACITY));
+  }
+  
+  /**
+   * Reads as many bytes as are available from the channel, up to the space
+   * left in the buffer.
+   * 
+   * @param chan The channel to read from.
+   * @return The number of bytes read, or -1 at the end of the stream.
+   * @throws IOException If the channel could not be read.
+   */
+  public int read(ReadableByteChannel chan) throws IOException {
+    makeRoom();
+    
+    return chan.read(buffer);
+  }
+  
+  /**
+   * Passes all of the complete messages that have been read to the {@link FrameHandler}.
+   * 
+   * @throws IOException If the stream contains an invalid message header.
+   */
+  public void decode() throws IOException {
+    while(true) {
+      int available = buffer.position() - start;
+      
+      if(length < 0) {
+        if(available < Framing.HEADER_LENGTH) break;
+        
+        length = buffer.getInt(start);
+        sysid = buffer.getShort(start + 4);
+        if(length < 0 || length > Framing.MAX_MESSAGE_LENGTH)
+          throw new IOException("Invalid network packet length " + length + ".");
+        
+        start += Framing.HEADER_LENGTH;
+      } else {
+        if(available < length) break;
+        
+        view.limit(start + length);
+        view.position(start);
+        start += length;
+        length = -1;
+        
+        handler.frameReceived(sysid, view);
+      }
+    }
+    
+    //the common case where everything read has been used.
+    if(start == buffer.position()) {
+      start = 0;
+      buffer.clear();
+      
+      //do not hold on to a large buffer after a large message.
+      if(buffer.capacity() > DEFAULT_CAPACITY) {
+        pool.release(buffer);
+        setBuffer(pool.acquire(DEFAULT_CAPACITY));
+      }
+    }
+  }
+  
+  /**
+   * Returns the buffer to the {@link BufferPool}.  This {@link FrameDecoder}
+   * must not be used afterwards.
+   */
+  public void release() {
+    pool.release(buffer);
+    
+    buffer = null;
+    view = null;
+  }
+  
+  private final BufferPool pool;
+  private final FrameHandler handler;
+  //bytes between start and the position of the buffer have not been decoded.
+  private ByteBuffer buffer;
+  private ByteBuffer view;
+  private int start;
+  //length of the message being read, or -1 while reading a header.
+  private int length = -1;
+  private short sysid;
+  
+  private void makeRoom() {
+    int needed = length < 0 ? Framing.HEADER_LENGTH : length;
+    
+    if(buffer.capacity() < needed) {
+      //the message will not fit so a larger buffer is needed.
+      ByteBuffer next = pool.acquire(needed);
+      
+      buffer.limit(buffer.position());
+      buffer.position(start);
+      next.put(buffer);
+      
+      pool.release(buffer);
+      setBuffer(next);
+      start = 0;
+    } else if(buffer.capacity() - start < needed || !buffer.hasRemaining()) {
+      buffer.limit(buffer.position());
+      buffer.position(start);
+      buffer.compact();
+      start = 0;
+    }
+  }
+  
+  private void setBuffer(ByteBuffer buf) {
+    buffer = buf;
+    view = buf.duplicate();
+  }
+  
+  private static final int DEFAULT_CAPACITY = 16 * 1024;
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package taiga.code.networking;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Helpers for the framing used by the stream based {@link NetworkManager}s.
+ * Each message is preceded by its length as an int and the id of the
+ * {@link NetworkedObject} it is for as a short.
+ * 
+ * @author russell
+ */
+public final class Framing {
+  
+  /**
+   * The length of the header in front of each message.
+   */
+  public static final int HEADER_LENGTH = 6;
+  /**
+   * The largest message that will be accepted.
+   */
+  public static final int MAX_MESSAGE_LENGTH = 1 << 24;
+  
+  /**
+   * Adds a framed message to a buffer.
+   * 
+   * @param buf The buffer to add the message to.
+   * @param sysid The id of the object the message is for.
+   * @param msg The message to add.
+   */
+  public static void put(ByteBuffer buf, short sysid, byte[] msg) {
+    buf.putInt(msg.length);
+    buf.putShort(sysid);
+    buf.put(msg);
+  }
+  
+  /**
+   * Writes several framed messages to a channel with as few writes as possible.
+   * The messages are not copied, instead the headers and messages are given to
+   * the channel together as a gathering write.  The channel is not locked, so
+   * callers have to make sure that only one thread writes to it at a time.
+   * 
+   * @param chan The channel to write to.
+   * @param sysids The ids of the objects the messages are for.
+   * @param msgs The messages to write.
+   * @param count The number of messages to write.
+   * @throws IOException If the messages could not be written.
+   */
+  public static void write(GatheringByteChannel chan, short[] sysids, byte[][] msgs, int count) throws IOException {
+    ByteBuffer headers = ByteBuffer.allocate(HEADER_LENGTH * count);
+    ByteBuffer[] bufs = new ByteBuffer[count * 2];
+    long remaining = 0;
+    
+    for(int i = 0; i < count; i++) {
+      headers.putInt(msgs[i].length);
+      headers.putShort(sysids[i]);
+      
+      //each header is a view of its part of the shared buffer.
+      headers.position(HEADER_LENGTH * i);
+      headers.limit(HEADER_LENGTH * (i + 1));
+      bufs[2 * i] = headers.slice();
+      headers.limit(headers.capacity());
+      headers.position(HEADER_LENGTH * (i + 1));
+      
+      bufs[2 * i + 1] = ByteBuffer.wrap(msgs[i]);
+      remaining += HEADER_LENGTH + msgs[i].length;
+    }
+    
+    int first = 0;
+    
+    while(remaining > 0) {
+      long written = chan.write(bufs, first, bufs.length - first);
+      remaining -= written;
+      
+      //skip past the buffers that have been finished.
+      while(first < bufs.length && !bufs[first].hasRemaining()) first++;
+      if(written == 0) Thread.yield();
+    }
+  }
+}
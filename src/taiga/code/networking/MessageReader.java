@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.code.networking;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the values of a message written by a {@link MessageWriter}.  The
+ * message is read directly from the buffer or array it arrived in, so
+ * reading the fields of a message does not copy it.  Reading past the end of
+ * the message throws an {@link EOFException} and malformed values throw an
+ * {@link IOException}, so a message from a broken or hostile remote can
+ * never be read out of bounds.
+ * 
+ * @author russell
+ */
+public final class MessageReader {
+  
+  /**
+   * Creates a {@link MessageReader} for the remaining bytes of the given
+   * buffer.  Reading advances the position of the buffer.
+   * 
+   * @param message The message to read.
+   */
+  public MessageReader(ByteBuffer message) {
+    buffer = message;
+  }
+  
+  /**
+   * Creates a {@link MessageReader} for the given array.
+   * 
+   * @param message The message to read.
+   */
+  public MessageReader(byte[] message) {
+    this(ByteBuffer.wrap(message));
+  }
+  
+  /**
+   * Reads a single byte.
+   * 
+   * @return The byte that was read.
+   * @throws IOException If the message has no more bytes.
+   */
+  public byte readByte() throws IOException {
+    require(1);
+    return buffer.get();
+  }
+  
+  /**
+   * Reads a single byte as a boolean.
+   * 
+   * @return Whether the byte was not zero.
+   * @throws IOException If the message has no more bytes.
+   */
+  public boolean readBoolean() throws IOException {
+    return readByte() != 0;
+  }
+  
+  /**
+   * Reads a short from two bytes.
+   * 
+   * @return The short that was read.
+   * @throws IOException If the message is too short.
+   */
+  public short readShort() throws IOException {
+    require(2);
+    return buffer.getShort();
+  }
+  
+  /**
+   * Reads an int from four bytes.
+   * 
+   * @return The int that was read.
+   * @throws IOException If the message is too short.
+   */
+  public int readInt() throws IOException {
+    require(4);
+    return buffer.getInt();
+  }
+  
+  /**
+   * Reads a long from eight bytes.
+   * 
+   * @return The long that was read.
+   * @throws IOException If the message is too short.
+   */
+  public long readLong() throws IOException {
+    require(8);
+    return buffer.getLong();
+  }
+  
+  /**
+   * Reads an int written with {@link MessageWriter#writeVarInt(int)}.
+   * 
+   * @return The int that was read.
+   * @throws IOException If the message is too short or the value is malformed.
+   */
+  public int readVarInt() throws IOException {
+    int result = 0;
+    
+    for(int shift = 0; shift < Integer.SIZE; shift += 7) {
+      int b = readByte();
+      
+      result |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) return result;
+    }
+    
+    throw new IOException("Malformed variable length integer.");
+  }
+  
+  /**
+   * Reads a long written with {@link MessageWriter#writeVarLong(long)}.
+   * 
+   * @return The long that was read.
+   * @throws IOException If the message is too short or the value is malformed.
+   */
+  public long readVarLong() throws IOException {
+    long result = 0;
+    
+    for(int shift = 0; shift < Long.SIZE; shift += 7) {
+      int b = readByte();
+      
+      result |= (long) (b & 0x7F) << shift;
+      if((b & 0x80) == 0) return result;
+    }
+    
+    throw new IOException("Malformed variable length integer.");
+  }
+  
+  /**
+   * Reads an int written with {@link MessageWriter#writeSignedVarInt(int)}.
+   * 
+   * @return The int that was read.
+   * @throws IOException If the message is too short or the value is malformed.
+   */
+  public int readSignedVarInt() throws IOException {
+    int value = readVarInt();
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  /**
+   * Reads a long written with {@link MessageWriter#writeSignedVarLong(long)}.
+   * 
+   * @return The long that was read.
+   * @throws IOException If the message is too short or the value is malformed.
+   */
+  public long readSignedVarLong() throws IOException {
+    long value = readVarLong();
+    return (value >>> 1) ^ -(value & 1);
+  }
+  
+  /**
+   * Reads a string written with {@link MessageWriter#writeString(java.lang.String)}.
+   * 
+   * @return The string that was read.
+   * @throws IOException If the message is too short or the length is malformed.
+   */
+  public String readString() throws IOException {
+    int length = readLength();
+    
+    String result;
+    if(buffer.hasArray()) {
+      result = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] data = new byte[length];
+      buffer.get(data);
+      result = new String(data, StandardCharsets.UTF_8);
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Reads the given number of bytes into a new array.
+   * 
+   * @param length The number of bytes to read.
+   * @return The bytes that were read.
+   * @throws IOException If the message is too short.
+   */
+  public byte[] readBytes(int length) throws IOException {
+    byte[] result = new byte[length];
+    readBytes(result, 0, length);
+    
+    return result;
+  }
+  
+  /**
+   * Reads bytes into part of an array.
+   * 
+   * @param dest The array to read into.
+   * @param off The index of the first byte to fill.
+   * @param len The number of bytes to read.
+   * @throws IOException If the message is too short.
+   */
+  public void readBytes(byte[] dest, int off, int len) throws IOException {
+    require(len);
+    buffer.get(dest, off, len);
+  }
+  
+  /**
+   * Returns a view of the next bytes of the message without copying them
+   * and skips past them.  The view is only valid as long as the message is.
+   * 
+   * @param length The number of bytes in the view.
+   * @return A {@link ByteBuffer} containing the bytes.
+   * @throws IOException If the message is too short.
+   */
+  public ByteBuffer readView(int length) throws IOException {
+    require(length);
+    
+    ByteBuffer result = buffer.slice();
+    result.limit(length);
+    buffer.position(buffer.position() + length);
+    
+    return result;
+  }
+  
+  /**
+   * Returns a view of the rest of the message and skips to its end.
+   * 
+   * @return A {@link ByteBuffer} containing the remaining bytes.
+   */
+  public ByteBuffer readRemaining() {
+    ByteBuffer result = buffer.slice();
+    buffer.position(buffer.limit());
+    
+    return result;
+  }
+  
+  /**
+   * Skips the given number of bytes.
+   * 
+   * @param length The number of bytes to skip.
+   * @throws IOException If the message is too short.
+   */
+  public void skip(int length) throws IOException {
+    require(length);
+    buffer.position(buffer.position() + length);
+  }
+  
+  /**
+   * Returns the number of bytes that have been read from the message.  Together
+   * with {@link #getBuffer()} this allows a part of the message to be kept or
+   * forwarded without decoding it.
+   * 
+   * @return The position of this {@link MessageReader} in the buffer.
+   */
+  public int position() {
+    return buffer.position();
+  }
+  
+  /**
+   * Returns the number of bytes left in the message.
+   * 
+   * @return The number of unread bytes.
+   */
+  public int remaining() {
+    return buffer.remaining();
+  }
+  
+  /**
+   * Checks whether there are any bytes left in the message.
+   * 
+   * @return Whether there are unread bytes.
+   */
+  public boolean hasRemaining() {
+    return buffer.hasRemaining();
+  }
+  
+  /**
+   * Returns the buffer this {@link MessageReader} reads from.
+   * 
+   * @return The buffer containing the message.
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+  
+  private final ByteBuffer buffer;
+  
+  private void require(int length) throws IOException {
+    if(length < 0) throw new IOException("Invalid length " + length);
+    if(buffer.remaining() < length) throw new EOFException();
+  }
+  
+  //reads a length and checks that the message is long enough for it.
+  private int readLength() throws IOException {
+    int length = readVarInt();
+    require(length);
+    
+    return length;
+  }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2015 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.code.networking;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds a message for a {@link NetworkedObject} in a buffer taken from a
+ * {@link BufferPool}.  Fixed size values are written in big endian order,
+ * lengths and other small values can be written as variable length integers
+ * and strings are written as UTF-8 after their length.  The buffer grows as
+ * needed, so the size of a message does not have to be known in advance.
+ * 
+ * A {@link MessageWriter} can be reused for several messages with {@link #reset()},
+ * and should be closed once it is no longer needed so that its buffer is
+ * returned to the pool.  Messages are read back with a {@link MessageReader}.
+ * 
+ * @author russell
+ */
+public final class MessageWriter implements AutoCloseable {
+  
+  /**
+   * Creates a new {@link MessageWriter} using the {@link BufferPool#SHARED} pool.
+   */
+  public MessageWriter() {
+    this(BufferPool.SHARED, DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * Creates a new {@link MessageWriter} with room for the given number of bytes.
+   * 
+   * @param pool The {@link BufferPool} to take buffers from.
+   * @param capacity The initial capacity of the buffer.
+   */
+  public MessageWriter(BufferPool pool, int capacity) {
+    this.pool = pool;
+    
+    buffer = pool.acquire(capacity);
+  }
+  
+  /**
+   * Writes a single byte.
+   * 
+   * @param value The byte to write, only the lowest 8 bits are used.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeByte(int value) {
+    reserve(1).put((byte) value);
+    return this;
+  }
+  
+  /**
+   * Writes a boolean as a single byte.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeBoolean(boolean value) {
+    return writeByte(value ? 1 : 0);
+  }
+  
+  /**
+   * Writes a short as two bytes.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeShort(short value) {
+    reserve(2).putShort(value);
+    return this;
+  }
+  
+  /**
+   * Writes an int as four bytes.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeInt(int value) {
+    reserve(4).putInt(value);
+    return this;
+  }
+  
+  /**
+   * Writes a long as eight bytes.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeLong(long value) {
+    reserve(8).putLong(value);
+    return this;
+  }
+  
+  /**
+   * Writes an int using seven bits per byte, so small values only take a
+   * single byte.  Negative values are treated as unsigned and always take
+   * five bytes, {@link #writeSignedVarInt(int)} should be used for values
+   * that may be negative.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeVarInt(int value) {
+    ByteBuffer buf = reserve(5);
+    
+    while((value & ~0x7F) != 0) {
+      buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+    
+    return this;
+  }
+  
+  /**
+   * Writes a long using seven bits per byte.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   * @see #writeVarInt(int) 
+   */
+  public MessageWriter writeVarLong(long value) {
+    ByteBuffer buf = reserve(10);
+    
+    while((value & ~0x7FL) != 0) {
+      buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buf.put((byte) value);
+    
+    return this;
+  }
+  
+  /**
+   * Writes an int that may be negative using seven bits per byte.  The sign
+   * is moved to the lowest bit so values close to zero are short either way.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeSignedVarInt(int value) {
+    return writeVarInt((value << 1) ^ (value >> 31));
+  }
+  
+  /**
+   * Writes a long that may be negative using seven bits per byte.
+   * 
+   * @param value The value to write.
+   * @return A reference to this {@link MessageWriter}.
+   * @see #writeSignedVarInt(int) 
+   */
+  public MessageWriter writeSignedVarLong(long value) {
+    return writeVarLong((value << 1) ^ (value >> 63));
+  }
+  
+  /**
+   * Writes a string as its length in bytes followed by its characters encoded
+   * as UTF-8.  The characters are encoded directly into the message.
+   * 
+   * @param value The string to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeString(String value) {
+    int length = getEncodedLength(value);
+    writeVarInt(length);
+    
+    ByteBuffer buf = reserve(length);
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      
+      if(c < 0x80) {
+        buf.put((byte) c);
+      } else if(c < 0x800) {
+        buf.put((byte) (0xC0 | (c >> 6)));
+        buf.put((byte) (0x80 | (c & 0x3F)));
+      } else if(isSurrogatePair(value, i)) {
+        int cp = value.codePointAt(i);
+        i++;
+        buf.put((byte) (0xF0 | (cp >> 18)));
+        buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+        buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        buf.put((byte) (0x80 | (cp & 0x3F)));
+      } else if(Character.isSurrogate(c)) {
+        //unpaired surrogates cannot be encoded.
+        buf.put((byte) '?');
+      } else {
+        buf.put((byte) (0xE0 | (c >> 12)));
+        buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buf.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    
+    return this;
+  }
+  
+  /**
+   * Writes all of the given bytes without a length.
+   * 
+   * @param data The bytes to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeBytes(byte[] data) {
+    return writeBytes(data, 0, data.length);
+  }
+  
+  /**
+   * Writes part of the given array without a length.
+   * 
+   * @param data The array containing the bytes to write.
+   * @param off The index of the first byte to write.
+   * @param len The number of bytes to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeBytes(byte[] data, int off, int len) {
+    reserve(len).put(data, off, len);
+    return this;
+  }
+  
+  /**
+   * Writes the remaining bytes of a buffer without a length.  The position of
+   * the buffer is moved to its limit.
+   * 
+   * @param data The bytes to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeBytes(ByteBuffer data) {
+    reserve(data.remaining()).put(data);
+    return this;
+  }
+  
+  /**
+   * Writes the contents of another {@link MessageWriter} without a length.
+   * 
+   * @param msg The message to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeBytes(MessageWriter msg) {
+    return writeBytes(msg, 0, msg.size());
+  }
+  
+  /**
+   * Writes part of the contents of another {@link MessageWriter} without a length.
+   * 
+   * @param msg The message to copy from.
+   * @param off The index of the first byte to write.
+   * @param len The number of bytes to write.
+   * @return A reference to this {@link MessageWriter}.
+   */
+  public MessageWriter writeBytes(MessageWriter msg, int off, int len) {
+    if(off < 0 || len < 0 || len > msg.size() - off)
+      throw new IndexOutOfBoundsException();
+    
+    ByteBuffer data = msg.buffer.duplicate();
+    data.limit(off + len);
+    data.position(off);
+    
+    return writeBytes(data);
+  }
+  
+  /**
+   * Makes sure there is room for at least the given number of bytes and
+   * returns the buffer of this {@link MessageWriter}.  This lets encoders
+   * write straight into the message, anything put into the returned buffer
+   * becomes part of the message.  The buffer may be replaced by any other
+   * write so it should not be kept.
+   * 
+   * @param bytes The number of bytes that will be written.
+   * @return The buffer positioned at the end of the message.
+   */
+  public ByteBuffer reserve(int bytes) {
+    if(buffer.remaining() >= bytes) return buffer;
+    
+    int size = buffer.position();
+    if(bytes > Framing.MAX_MESSAGE_LENGTH - size)
+      throw new BufferOverflowException();
+    
+    //grow to at least double so that repeated small writes stay cheap.
+    ByteBuffer next = pool.acquire(Math.max(size + bytes, buffer.capacity() * 2));
+    buffer.flip();
+    next.put(buffer);
+    
+    pool.release(buffer);
+    buffer = next;
+    
+    return buffer;
+  }
+  
+  /**
+   * Returns the number of bytes written since this {@link MessageWriter}
+   * was created or last reset.
+   * 
+   * @return The size of the message.
+   */
+  public int size() {
+    return buffer.position();
+  }
+  
+  /**
+   * Discards the current message so that this {@link MessageWriter} can be
+   * used for another.
+   */
+  public void reset() {
+    buffer.clear();
+  }
+  
+  /**
+   * Copies the message into a new array so that it can be sent.
+   * 
+   * @return The bytes of the message.
+   */
+  public byte[] toByteArray() {
+    byte[] result = new byte[buffer.position()];
+    
+    ByteBuffer data = buffer.duplicate();
+    data.flip();
+    data.get(result);
+    
+    return result;
+  }
+  
+  /**
+   * Returns the buffer of this {@link MessageWriter} to its pool.  The
+   * {@link MessageWriter} must not be used afterwards.
+   */
+  @Override
+  public void close() {
+    if(buffer == null) return;
+    
+    pool.release(buffer);
+    buffer = null;
+  }
+  
+  private final BufferPool pool;
+  private ByteBuffer buffer;
+  
+  private static int getEncodedLength(String value) {
+    int length = 0;
+    
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      
+      if(c < 0x80) {
+        length += 1;
+      } else if(c < 0x800) {
+        length += 2;
+      } else if(isSurrogatePair(value, i)) {
+        length += 4;
+        i++;
+      } else if(Character.isSurrogate(c)) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    
+    return length;
+  }
+  
+  private static boolean isSurrogatePair(String value, int index) {
+    return Character.isHighSurrogate(value.charAt(index)) &&
+      index + 1 < value.length() &&
+      Character.isLowSurrogate(value.charAt(index + 1));
+  }
+  
+  private static final int DEFAULT_CAPACITY = 4096;
+}
@@ -21,22 +21,31 @@ package taiga.code.networking;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import taiga.code.registration.NamedObject;
 import taiga.code.text.TextLocalizer;
-import taiga.code.util.ByteUtils;
 
 /**
  * Manages networking for the registration tree. This will find all {@link NetworkedObject}s
  * it can find allowing them to communicate across a network.
  * 
+ * When batching is enabled messages from {@link NetworkedObject}s are queued
+ * for each destination instead of being sent right away.  The queues are sent
+ * when {@link #flush()} is called, normally at the end of each update, or when
+ * one of them grows too large, so that all of the messages produced during
+ * an update can be written together.
+ * 
  * @author russell
  */
 public abstract class NetworkManager extends NamedObject {
@@ -52,6 +61,11 @@ public abstract class NetworkManager extends NamedObject {
    * The default timeout for network operation in milliseconds.
    */
   public static final int DEFAULT_TIMEOUT = 5000;
+  /**
+   * The number of queued bytes for a destination that will cause the queue
+   * to be sent without waiting for {@link #flush()}.
+   */
+  public static final int FLUSH_THRESHOLD = 64 * 1024;
   private static final long serialVersionUID = 1L;
 
   /**
@@ -64,9 +78,48 @@ public abstract class NetworkManager extends NamedObject {
     
     index = new HashMap<>(0);
     objects = new HashMap<>(0);
+    outbound = new ConcurrentHashMap<>();
     curstate = State.initialized;
   }
   
+  /**
+   * Changes whether messages are queued until {@link #flush()} is called.
+   * Any messages that are already queued are sent when batching is turned off.
+   * 
+   * @param batch Whether messages should be batched.
+   */
+  public void setBatching(boolean batch) {
+    batching = batch;
+    
+    if(!batch) flush();
+  }
+  
+  /**
+   * Returns whether messages are queued until {@link #flush()} is called.
+   * 
+   * @return Whether messages are batched.
+   */
+  public boolean isBatching() {
+    return batching;
+  }
+  
+  /**
+   * Sends all of the queued messages.  This should be called at the end of each
+   * update while batching is enabled.
+   */
+  public void flush() {
+    for(Map.Entry<Object, Outbound> ent : outbound.entrySet()) {
+      Object dest = ent.getKey() == SERVER ? null : ent.getKey();
+      
+      try {
+        flush(dest, ent.getValue());
+      } catch (IOException ex) {
+        log.log(Level.WARNING, FLUSH_FAILED, dest);
+        log.log(Level.WARNING, null, ex);
+      }
+    }
+  }
+  
   /**
    * Scans the registration tree that this {@link NetworkManager} is a part of
    * to find {@link NetworkedObject}s.  This method must be called in order for
@@ -146,6 +199,51 @@ public abstract class NetworkManager extends NamedObject {
    */
   protected abstract void sendPacket(Object dest, short sysid, byte[] msg) throws IOException;
   
+  /**
+   * Sends several packets to the given destination in order.  By default this
+   * just sends each of them with {@link #sendPacket(java.lang.Object, short, byte[]) },
+   * implementations should override this if they can write them together.
+   * 
+   * @param dest The key object associated with the desire remote client.
+   * @param sysids The ID numbers of the {@link NetworkedObject}s that sent the packets.
+   * @param msgs The data packets to send.
+   * @param count The number of packets to send.
+   * @throws java.io.IOException Thrown if the messages cannot be sent for any reason.
+   */
+  protected void sendPackets(Object dest, short[] sysids, byte[][] msgs, int count) throws IOException {
+    for(int i = 0; i < count; i++)
+      sendPacket(dest, sysids[i], msgs[i]);
+  }
+  
+  /**
+   * Sends or queues a message from a {@link NetworkedObject}.
+   * 
+   * @param dest The key object associated with the desire remote client.
+   * @param sysid The ID number of the {@link NetworkedObject} that is sending the message.
+   * @param msg The message to send.
+   * @param urgent Whether the message should be sent right away along with
+   * anything already queued for the destination.
+   * @throws IOException Thrown if the message cannot be sent for any reason.
+   */
+  void queuePacket(Object dest, short sysid, byte[] msg, boolean urgent) throws IOException {
+    Outbound out = outbound.get(dest == null ? SERVER : dest);
+    
+    if(!batching && out == null) {
+      sendPacket(dest, sysid, msg);
+      return;
+    }
+    
+    if(out == null) out = outbound.computeIfAbsent(dest == null ? SERVER : dest, (k) -> new Outbound());
+    
+    //the lock is held while writing so that the order of messages is kept.
+    synchronized(out) {
+      out.add(sysid, msg);
+      
+      if(urgent || !batching || out.size >= FLUSH_THRESHOLD)
+        flush(dest, out);
+    }
+  }
+  
   /**
    * Called when a {@link Packet} is received from the network.
    * 
@@ -156,31 +254,35 @@ public abstract class NetworkManager extends NamedObject {
    * for.
    */
   protected void packetRecieved(Object remote, byte[] pack, short sysid) {
-    if(sysid == 0) {
-      switch(pack[0]) {
-        case SYNC_REQ:
-          receiveSyncRequest(remote, pack);
-          return;
-        case SYNC_RES:
-          receiveSyncResponse(pack);
-          return;
-        case HASH_CHECK:
-          receiveHashCheck(remote, pack);
-          return;
-        case VALID_HASH:
-          curstate = State.validated;
-          log.log(Level.FINE, "Network object hash validated.");
-          synchronized (this) { this.notifyAll(); }
-          return;
-        case INVALID_RES:
-          curstate = State.initialized;
-          log.log(Level.WARNING, "Network manager is not compatible with remote manager.");
-          synchronized (this) { this.notifyAll(); }
-          return;
-        default:
-          log.log(Level.SEVERE, "Unknown packet type {0} received.", pack[0]);
-          return;
-      }
+    if(sysid == NETWORK_MANAGER_ID) {
+      receiveManagerMessage(remote, new MessageReader(pack));
+      return;
+    }
+    
+    NetworkedObject obj = index.get(sysid);
+    
+    if(obj == null) {
+      log.log(Level.SEVERE, UNKNOWN_PACKET_ID, sysid);
+      return;
+    }
+    
+    obj.messageRecieved(remote, pack);
+  }
+  
+  /**
+   * Called when a message is received from the network as a view of a buffer.
+   * The position and limit of the buffer mark the bounds of the message, and
+   * it is only valid until this method returns.
+   * 
+   * @param remote The key for the remote client that sent the packet, or null if
+   *  this is a client manager.
+   * @param pack A view of the message.
+   * @param sysid The ID number of the system that the message is for.
+   */
+  protected void packetRecieved(Object remote, ByteBuffer pack, short sysid) {
+    if(sysid == NETWORK_MANAGER_ID) {
+      receiveManagerMessage(remote, new MessageReader(pack));
+      return;
     }
     
     NetworkedObject obj = index.get(sysid);
@@ -241,10 +343,10 @@ public abstract class NetworkManager extends NamedObject {
     });
 
     long timeout = System.currentTimeMillis() + getTimeout();
-    while(System.currentTimeMillis() <= timeout) {
+    while(curstate != State.connected && System.currentTimeMillis() < timeout) {
       
       try {
-        this.wait(timeout);
+        this.wait(timeout - System.currentTimeMillis());
       } catch(InterruptedException ex) {
         if(curstate == State.connected) break;
       }
@@ -262,13 +364,14 @@ public abstract class NetworkManager extends NamedObject {
     curstate = State.bound;
     
     //send the hash check packet
-    byte[] pack = ByteUtils.toBytes(hash, 1, new byte[9]);
-    pack[0] = HASH_CHECK;
-    sendPacket(null, NETWORK_MANAGER_ID, pack);
+    try(MessageWriter out = new MessageWriter()) {
+      out.writeByte(HASH_CHECK).writeLong(hash);
+      sendPacket(null, NETWORK_MANAGER_ID, out.toByteArray());
+    }
     
     //wait for the response.
     long timeout = System.currentTimeMillis() + getTimeout();
-    while(System.currentTimeMillis() < timeout) {
+    while(curstate == State.bound && System.currentTimeMillis() < timeout) {
       try {
         this.wait(timeout - System.currentTimeMillis());
       } catch(InterruptedException ex) {
@@ -281,22 +384,46 @@ public abstract class NetworkManager extends NamedObject {
   }
   
   private void sendSyncRequest(NetworkedObject obj) throws IOException {
-    byte[] str;
-    
-    str = obj.getFullName().getBytes(NETWORK_CHARSET);
-    
-    byte[] data = new byte[str.length + 1];
-    data[0] = SYNC_REQ;
-    data = new byte[str.length + 1];
-    
-    System.arraycopy(str, 0, data, 1, str.length);
-    DatagramPacket p;
-    
-    sendPacket(null, NETWORK_MANAGER_ID, data);
+    try(MessageWriter out = new MessageWriter()) {
+      out.writeByte(SYNC_REQ).writeString(obj.getFullName());
+      sendPacket(null, NETWORK_MANAGER_ID, out.toByteArray());
+    }
+  }
+  
+  private void receiveManagerMessage(Object remote, MessageReader in) {
+    try {
+      byte type = in.readByte();
+      
+      switch(type) {
+        case SYNC_REQ:
+          receiveSyncRequest(remote, in);
+          return;
+        case SYNC_RES:
+          receiveSyncResponse(in);
+          return;
+        case HASH_CHECK:
+          receiveHashCheck(remote, in);
+          return;
+        case VALID_HASH:
+          curstate = State.validated;
+          log.log(Level.FINE, "Network object hash validated.");
+          synchronized (this) { this.notifyAll(); }
+          return;
+        case INVALID_RES:
+          curstate = State.initialized;
+          log.log(Level.WARNING, "Network manager is not compatible with remote manager.");
+          synchronized (this) { this.notifyAll(); }
+          return;
+        default:
+          log.log(Level.SEVERE, "Unknown packet type {0} received.", type);
+      }
+    } catch (IOException ex) {
+      log.log(Level.WARNING, BAD_MESSAGE, new Object[]{remote, ex.getMessage()});
+    }
   }
   
-  private void receiveHashCheck(Object remote, byte[] data) {
-    long hash = ByteUtils.toLong(data, 1);
+  private void receiveHashCheck(Object remote, MessageReader in) throws IOException {
+    long hash = in.readLong();
     
     try {
       boolean valid = hash == getObjectHash();
@@ -312,14 +439,11 @@ public abstract class NetworkManager extends NamedObject {
     }
   }
   
-  private void receiveSyncResponse(byte[] pack) {
-    NetworkedObject obj;
-    String oname;
-    
-    oname = new String(pack, 3, pack.length - 3, NETWORK_CHARSET);
-    obj = objects.get(oname);
+  private void receiveSyncResponse(MessageReader in) throws IOException {
+    short id = in.readShort();
+    String oname = in.readString();
     
-    short id = ByteUtils.toShort(pack, 1);
+    NetworkedObject obj = getSyncObject(oname);
     
     index.put(id, obj);
     obj.id = id;
@@ -333,28 +457,26 @@ public abstract class NetworkManager extends NamedObject {
     }
   }
   
-  private void receiveSyncRequest(Object remote, byte[] pack) {
-    String oname;
-    
-    oname = new String(pack, 1, pack.length - 1, NETWORK_CHARSET);
-    
-    short id = objects.get(oname).id;
-    
-    //syncresponse is the id followed by the encoded string.
-    //there are two more bytes needed for the objects id.
-    byte[] data = new byte[pack.length + 2];
-    data[0] = SYNC_RES;
-    
-    System.arraycopy(ByteUtils.toBytes(id), 0, data, 1, 2);
-    System.arraycopy(pack, 1, data, 3, pack.length - 1);
-    
-    try {
-      sendPacket(remote, NETWORK_MANAGER_ID, data);
+  private void receiveSyncRequest(Object remote, MessageReader in) throws IOException {
+    String oname = in.readString();
+    short id = getSyncObject(oname).id;
+    
+    //syncresponse is the id followed by the name of the object.
+    try(MessageWriter out = new MessageWriter()) {
+      out.writeByte(SYNC_RES).writeShort(id).writeString(oname);
+      sendPacket(remote, NETWORK_MANAGER_ID, out.toByteArray());
     } catch (IOException ex) {
       Logger.getLogger(NetworkManager.class.getName()).log(Level.SEVERE, "Exception responding to object synchronization request.", ex);
     }
   }
   
+  private NetworkedObject getSyncObject(String oname) throws IOException {
+    NetworkedObject obj = objects.get(oname);
+    if(obj == null) throw new IOException("Unknown network object " + oname);
+    
+    return obj;
+  }
+  
   private void fireConnected() {
     curstate = State.connected;
     
@@ -370,6 +492,8 @@ public abstract class NetworkManager extends NamedObject {
   }
   
   protected void fireClientDisconnect(Object clientkey) {
+    if(clientkey != null) outbound.remove(clientkey);
+    
     objects.values().stream().forEach((NetworkedObject client) -> {
       client.clientDisconnected(clientkey);
     });
@@ -387,13 +511,60 @@ public abstract class NetworkManager extends NamedObject {
   protected void connect() throws TimeoutException, IOException {
     syncIDs();
     
-    fireConnected();
+    //the last sync response will already have notified the objects.
+    if(curstate != State.connected) fireConnected();
   }
   
   private final Map<String, NetworkedObject> objects;
   private final Map<Short, NetworkedObject> index;
+  private final ConcurrentMap<Object, Outbound> outbound;
+  private volatile boolean batching;
   private State curstate;
   
+  private void flush(Object dest, Outbound out) throws IOException {
+    synchronized(out) {
+      if(out.count == 0) return;
+      
+      try {
+        sendPackets(dest, out.sysids, out.msgs, out.count);
+      } finally {
+        out.clear();
+      }
+    }
+  }
+  
+  //messages waiting to be sent to a single destination.
+  private static class Outbound {
+    
+    public Outbound() {
+      sysids = new short[INITIAL_QUEUE];
+      msgs = new byte[INITIAL_QUEUE][];
+    }
+    
+    public short[] sysids;
+    public byte[][] msgs;
+    public int count;
+    public int size;
+    
+    public void add(short sysid, byte[] msg) {
+      if(count == msgs.length) {
+        sysids = Arrays.copyOf(sysids, count * 2);
+        msgs = Arrays.copyOf(msgs, count * 2);
+      }
+      
+      sysids[count] = sysid;
+      msgs[count] = msg;
+      count++;
+      size += msg.length;
+    }
+    
+    public void clear() {
+      Arrays.fill(msgs, 0, count, null);
+      count = 0;
+      size = 0;
+    }
+  }
+  
   private enum State {
     initialized,
     bound,
@@ -428,7 +599,7 @@ public abstract class NetworkManager extends NamedObject {
    */
   public abstract boolean isConnected();
   
-  // id for a sync request, this packet has a single string encoded as bytes.
+  // id for a sync request, this packet has the name of a single object.
   private static final byte SYNC_REQ = 0;
   //id for a sync response, this has an short id followed by a single string.
   private static final byte SYNC_RES = 1;
@@ -439,10 +610,16 @@ public abstract class NetworkManager extends NamedObject {
   //id for a signal that the hash values match.
   private static final byte VALID_HASH = 4;
   
+  //key for messages to the server since the concurrent map does not allow null.
+  private static final Object SERVER = new Object();
+  private static final int INITIAL_QUEUE = 16;
+  
   private static final String locprefix = NetworkManager.class.getName().toLowerCase();
   
+  private static final String BAD_MESSAGE = locprefix + ".bad_message";
   private static final String ENCODING_ERR = locprefix + ".encoding_err";
   private static final String FOUND_OBJECT = locprefix + ".found_network_object";
+  private static final String FLUSH_FAILED = locprefix + ".flush_failed";
   private static final String ID_ASSIGNED = locprefix + ".id_assigned";
   private static final String IDS_SYNCHRONIZED = locprefix + ".ids_synchronized";
   private static final String SYNC_TIMEOUT_EX = locprefix + ".sync_timeout_ex";
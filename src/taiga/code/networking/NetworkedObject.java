@@ -21,6 +21,7 @@ package taiga.code.networking;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import taiga.code.registration.NamedObject;
@@ -72,12 +73,42 @@ public abstract class NetworkedObject extends NamedObject {
    * sent for any reason.
    */
   public final void sendMessage(byte[] pack, Object dest) throws IOException {
+    sendMessage(pack, dest, false);
+  }
+  
+  /**
+   * Sends a {@link Packet} to a specific destination.  If the {@link NetworkManager}
+   * is batching messages they are normally queued until the end of the update,
+   * urgent messages are instead sent right away along with anything queued
+   * before them.
+   * 
+   * @param pack The {@link DatagramPacket} to send.
+   * @param dest The object id key for the destination.
+   * @param urgent Whether the message should be sent without waiting.
+   * @throws java.io.IOException Thrown if the {@link DatagramPacket} cannot be
+   * sent for any reason.
+   */
+  public final void sendMessage(byte[] pack, Object dest, boolean urgent) throws IOException {
     if(manager == null)
       throw new IOException("Could not send message: No network manager avalaible.");
     else if(pack == null)
       throw new NullPointerException("Attempt to send a null packet.");
     
-    manager.sendPacket(dest, getID(), pack);
+    manager.queuePacket(dest, getID(), pack, urgent);
+  }
+  
+  /**
+   * Sends the message built by a {@link MessageWriter} to a specific destination.
+   * The contents of the {@link MessageWriter} are copied, so it can be reset
+   * and reused as soon as this returns.
+   * 
+   * @param msg The {@link MessageWriter} containing the message.
+   * @param dest The object id key for the destination.
+   * @throws java.io.IOException Thrown if the message cannot be sent for any
+   * reason.
+   */
+  public final void sendMessage(MessageWriter msg, Object dest) throws IOException {
+    sendMessage(msg.toByteArray(), dest, false);
   }
   
   /**
@@ -127,6 +158,23 @@ public abstract class NetworkedObject extends NamedObject {
    */
   protected abstract void messageRecieved(Object remote, byte[] pack);
   
+  /**
+   * Called when a message is received as a view of a network buffer.  The
+   * position and limit of the buffer mark the bounds of the message, and it is
+   * only valid until this method returns.  By default the message is copied
+   * and passed to {@link #messageRecieved(java.lang.Object, byte[]) }, objects
+   * that can read the buffer directly should override this instead.
+   * 
+   * @param remote The key for the remote client that sent the packet.
+   * @param pack A view of the received data.
+   */
+  protected void messageRecieved(Object remote, ByteBuffer pack) {
+    byte[] data = new byte[pack.remaining()];
+    pack.get(data);
+    
+    messageRecieved(remote, data);
+  }
+  
   /**
    * Called when a {@link NetworkManager} has discovered and attached to this
    * {@link NetworkedObject}.
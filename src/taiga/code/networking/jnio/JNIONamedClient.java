@@ -28,6 +28,9 @@ import java.nio.channels.SocketChannel;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import taiga.code.networking.BufferPool;
+import taiga.code.networking.FrameDecoder;
+import taiga.code.networking.Framing;
 import taiga.code.networking.NetworkManager;
 
 public class JNIONamedClient extends NetworkManager {
@@ -48,24 +51,23 @@ public class JNIONamedClient extends NetworkManager {
     //create a thread to listen for inbound datagrams
     listener = new Thread(() -> {
       log.log(Level.FINEST, "Starting datagram listener thread.");
-      ByteBuffer buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+      FrameDecoder decoder = new FrameDecoder(BufferPool.SHARED,
+        (sysid, payload) -> packetRecieved(null, payload, sysid));
       
-      while(isConnected()) {
-        buffer.clear();
-        
-        try {
+      try {
+        while(isConnected()) {
           //get the message from the channel.
-          buffer.limit(
-            channel.read(buffer));
-          buffer.rewind();
-          while(buffer.remaining() != 0)
-            receiveMessage(buffer);
-        } catch(IOException ex) {
-          log.log(Level.SEVERE, "Exception occur while waiting for network data.", ex);
-        } finally {
-          //notify the manager that the connection has ended.
-          fireClientDisconnect(this);
+          if(decoder.read(channel) < 0) break;
+          
+          decoder.decode();
         }
+      } catch(IOException ex) {
+        log.log(Level.SEVERE, "Exception occur while waiting for network data.", ex);
+      } finally {
+        decoder.release();
+        
+        //notify the manager that the connection has ended.
+        fireClientDisconnect(this);
       }
       
       log.log(Level.FINEST, "Datagram listener thread finished.");
@@ -97,25 +99,31 @@ public class JNIONamedClient extends NetworkManager {
     if(!isConnected()) return;
     
     ByteBuffer buffer = buffers.get();
+    if(buffer.capacity() < msg.length + Framing.HEADER_LENGTH) {
+      buffer = ByteBuffer.allocate(Math.max(msg.length + Framing.HEADER_LENGTH, buffer.capacity() * 2));
+      buffers.set(buffer);
+    }
+    
     buffer.clear();
     
-    buffer.putShort((short) msg.length);
+    buffer.putInt(msg.length);
     buffer.putShort(sysid);
     buffer.put(msg);
     
     buffer.flip();
-    channel.write(buffer);
+    synchronized(channel) {
+      while(buffer.hasRemaining())
+        channel.write(buffer);
+    }
   }
   
-  private boolean receiveMessage(ByteBuffer buffer) {
-    short len = buffer.getShort();
-    short sysid = buffer.getShort();
-    byte[] data = new byte[len];
-    buffer.get(data);
-    
-    packetRecieved(null, data, sysid);
+  @Override
+  protected void sendPackets(Object dest, short[] sysids, byte[][] msgs, int count) throws IOException {
+    if(!isConnected()) return;
     
-    return true;
+    synchronized(channel) {
+      Framing.write(channel, sysids, msgs, count);
+    }
   }
   
   private SocketChannel channel;
@@ -23,8 +23,10 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.frozencode.jniolib.server.JNioBindingParameters;
@@ -33,6 +35,9 @@ import net.frozencode.jniolib.server.JNioDatagramChannel;
 import net.frozencode.jniolib.server.JNioEventListener;
 import net.frozencode.jniolib.server.JNioServer;
 import net.frozencode.jniolib.server.JNioStreamChannel;
+import taiga.code.networking.BufferPool;
+import taiga.code.networking.FrameDecoder;
+import taiga.code.networking.Framing;
 import taiga.code.networking.NetworkManager;
 
 /**
@@ -54,6 +59,7 @@ public class JNIONamedServer extends NetworkManager implements JNioEventListener
     super(name);
     
     server = new JNioServer(); 
+    decoders = new ConcurrentHashMap<>();
   }
   
   public void openConnection(int port) throws IOException {
@@ -90,31 +96,60 @@ public class JNIONamedServer extends NetworkManager implements JNioEventListener
     if(!(dest instanceof JNioChannel) || !isConnected())
       throw new IOException("No valid connection for client " + dest);
     
-    ByteBuffer buf = buffers.get();
+    ByteBuffer buf = getBuffer(msg.length + Framing.HEADER_LENGTH);
     buf.clear();
     
-    buf.putShort((short) msg.length);
+    buf.putInt(msg.length);
     buf.putShort(sysid);
     buf.put(msg);
     
     buf.flip();
     if(dest instanceof WritableByteChannel) {
+      WritableByteChannel chan = (WritableByteChannel) dest;
       
-      ((WritableByteChannel) dest).write(buf);
+      //large messages may not fit in the socket buffer all at once.
+      synchronized(chan) {
+        while(buf.hasRemaining())
+          if(chan.write(buf) == 0) Thread.yield();
+      }
+    }
+  }
+
+  @Override
+  protected void sendPackets(Object dest, short[] sysids, byte[][] msgs, int count) throws IOException {
+    if(!(dest instanceof JNioChannel) || !isConnected())
+      throw new IOException("No valid connection for client " + dest);
+    
+    if(dest instanceof GatheringByteChannel) {
+      synchronized(dest) {
+        Framing.write((GatheringByteChannel) dest, sysids, msgs, count);
+      }
+    } else {
+      super.sendPackets(dest, sysids, msgs, count);
     }
   }
 
   @Override
   public void onDataRecieved(JNioStreamChannel jnsc) {
+    FrameDecoder decoder = decoders.get(jnsc);
+    if(decoder == null) decoder = createDecoder(jnsc);
+    
     try {
-      Message msg = readMessage(jnsc);
-      while(msg != null) {
-        packetRecieved(jnsc, msg.msg, msg.sysid);
-        
-        msg = readMessage(jnsc);
-      }
+      //keep going until everything the channel has for now is handled.
+      int read;
+      do {
+        read = decoder.read(jnsc);
+        decoder.decode();
+      } while(read > 0);
     } catch (IOException ex) {
       log.log(Level.WARNING, "Exception while receiving network message.", ex);
+      
+      //the rest of the stream can not be framed after an error.
+      try {
+        jnsc.close();
+      } catch (IOException e) {
+        log.log(Level.WARNING, null, e);
+      }
     }
   }
 
@@ -144,41 +179,37 @@ public class JNIONamedServer extends NetworkManager implements JNioEventListener
   
   @Override
   public void onClientDisconnected(JNioChannel arg0, boolean arg1) {
+    FrameDecoder decoder = decoders.remove(arg0);
+    if(decoder != null) decoder.release();
+    
     fireClientDisconnect(arg0);
   }
   
-  private Message readMessage(ReadableByteChannel chan) throws IOException {
-    ByteBuffer buf = buffers.get();
-    Message msg = new Message();
-    int read = 0;
+  private FrameDecoder createDecoder(JNioStreamChannel chan) {
+    FrameDecoder decoder = new FrameDecoder(BufferPool.SHARED,
+      (sysid, payload) -> packetRecieved(chan, payload, sysid));
     
-    //get the header for the message.
-    buf.clear();
-    buf.limit(4);
-    read = chan.read(buf);
-    buf.rewind();
+    FrameDecoder prev = decoders.putIfAbsent(chan, decoder);
+    if(prev == null) return decoder;
     
-    //if nothing was read then we are at the end of the channel for now.
-    if(read == 0) return null;
-    if(read != 4) throw new IOException("Could not read header of network packet.");
-    
-    short size = buf.getShort();
-    msg.sysid = buf.getShort();
-    msg.msg = new byte[size];
-    
-    //read in the message.
-    buf.rewind();
-    buf.limit(size);
-    read = chan.read(buf);
-    buf.rewind();
+    decoder.release();
+    return prev;
+  }
+  
+  private static ByteBuffer getBuffer(int size) {
+    ByteBuffer buf = buffers.get();
     
-    if(read != size) throw new IOException("Could not read entire network packet.");
-    buf.get(msg.msg);
+    if(buf.capacity() < size) {
+      buf = ByteBuffer.allocateDirect(Math.max(size, buf.capacity() * 2));
+      buffers.set(buf);
+    }
     
-    return msg;
+    return buf;
   }
   
   private final JNioServer server;
+  //one decoder for each connected client.
+  private final ConcurrentMap<Object, FrameDecoder> decoders;
   private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
 
     @Override
@@ -187,11 +218,6 @@ public class JNIONamedServer extends NetworkManager implements JNioEventListener
     }
   };
   
-  private static class Message {
-    short sysid;
-    byte[] msg;
-  }
-  
   private static final String locprefix = JNIONamedServer.class.getName().toLowerCase();
   
   private static final Logger log = Logger.getLogger(locprefix,
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2015 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package taiga.code.networking.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import taiga.code.networking.BufferPool;
+import taiga.code.networking.FrameDecoder;
+import taiga.code.networking.Framing;
+import taiga.code.networking.NetworkManager;
+
+/**
+ * A server {@link NetworkManager} built directly on a {@link Selector}.  New
+ * connections are accepted by a single thread and spread evenly over a number
+ * of I/O loops, each of which has its own {@link Selector} and thread.  A
+ * connection is only ever handled by its own loop, so the loops do not need
+ * to coordinate and a few threads can serve thousands of clients.
+ * 
+ * Outgoing messages are added to a queue for each connection and written by
+ * its loop whenever the socket can accept more data.  Clients that fall too
+ * far behind are disconnected instead of letting their queue grow forever.
+ * The key for each client is an opaque object for its connection.
+ * 
+ * @author russell
+ */
+public class NIONamedServer extends NetworkManager {
+  private static final long serialVersionUID = 1L;
+  
+  /**
+   * The maximum number of bytes that can be queued for a single client
+   * before it is disconnected.
+   */
+  public static final int MAX_QUEUED = 32 * 1024 * 1024;
+  
+  /**
+   * Creates a new {@link NIONamedServer} with an I/O loop for each processor.
+   * 
+   * @param name The name for the server.
+   */
+  public NIONamedServer(String name) {
+    this(name, Runtime.getRuntime().availableProcessors());
+  }
+  
+  /**
+   * Creates a new {@link NIONamedServer} with the given number of I/O loops.
+   * 
+   * @param name The name for the server.
+   * @param threads The number of I/O loops to spread connections over.
+   */
+  public NIONamedServer(String name, int threads) {
+    super(name);
+    
+    if(threads < 1) throw new IllegalArgumentException("At least one I/O thread is required.");
+    
+    this.threads = threads;
+    next = new AtomicInteger();
+  }
+  
+  /**
+   * Starts accepting connections on the given port of the local host.
+   * 
+   * @param port The port to listen on.
+   * @throws IOException If the port could not be opened.
+   */
+  public void openConnection(int port) throws IOException {
+    openConnection(new InetSocketAddress(InetAddress.getLocalHost(), port));
+  }
+  
+  /**
+   * Starts accepting connections on the given address.
+   * 
+   * @param addr The address to listen on.
+   * @throws IOException If the address could not be opened.
+   */
+  public synchronized void openConnection(InetSocketAddress addr) throws IOException {
+    log.log(Level.FINEST, "openConnection({0})", addr);
+    if(isConnected()) closeConnection();
+    
+    ServerSocketChannel chan = ServerSocketChannel.open();
+    chan.bind(addr);
+    
+    loops = new IOLoop[threads];
+    try {
+      for(int i = 0; i < loops.length; i++) {
+        loops[i] = new IOLoop();
+        new Thread(loops[i], getName() + "-io-" + i).start();
+      }
+    } catch (IOException ex) {
+      chan.close();
+      closeLoops();
+      throw ex;
+    }
+    
+    server = chan;
+    
+    Thread acceptor = new Thread(this::accept, getName() + "-acceptor");
+    acceptor.start();
+    
+    log.log(Level.INFO, CONNECTION_OPENED, new Object[]{chan.getLocalAddress(), threads});
+  }
+  
+  /**
+   * Stops accepting connections and disconnects all of the clients.
+   */
+  public synchronized void closeConnection() {
+    if(server == null) return;
+    
+    try {
+      server.close();
+    } catch (IOException ex) {
+      log.log(Level.WARNING, null, ex);
+    }
+    
+    server = null;
+    closeLoops();
+    
+    log.log(Level.INFO, CONNECTION_CLOSED, getName());
+  }
+  
+  /**
+   * Returns the address that this {@link NIONamedServer} is accepting
+   * connections on.
+   * 
+   * @return The local address or null if it is not open.
+   */
+  public InetSocketAddress getAddress() {
+    ServerSocketChannel chan = server;
+    
+    try {
+      return chan == null ? null : (InetSocketAddress) chan.getLocalAddress();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+  
+  @Override
+  public boolean isServer() {
+    return true;
+  }
+  
+  @Override
+  public boolean isClient() {
+    return false;
+  }
+  
+  @Override
+  public boolean isConnected() {
+    ServerSocketChannel chan = server;
+    
+    return chan != null && chan.isOpen();
+  }
+  
+  @Override
+  protected void sendPacket(Object dest, short sysid, byte[] msg) throws IOException {
+    Connection conn = getConnection(dest);
+    
+    ByteBuffer buf = BufferPool.SHARED.acquire(msg.length + Framing.HEADER_LENGTH);
+    Framing.put(buf, sysid, msg);
+    buf.flip();
+    
+    conn.send(buf);
+  }
+  
+  @Override
+  protected void sendPackets(Object dest, short[] sysids, byte[][] msgs, int count) throws IOException {
+    Connection conn = getConnection(dest);
+    
+    int size = 0;
+    for(int i = 0; i < count; i++)
+      size += msgs[i].length + Framing.HEADER_LENGTH;
+    
+    //all of the messages are copied into a single buffer for one write.
+    ByteBuffer buf = BufferPool.SHARED.acquire(size);
+    for(int i = 0; i < count; i++)
+      Framing.put(buf, sysids[i], msgs[i]);
+    buf.flip();
+    
+    conn.send(buf);
+  }
+  
+  private final int threads;
+  private final AtomicInteger next;
+  private volatile ServerSocketChannel server;
+  private volatile IOLoop[] loops;
+  
+  private Connection getConnection(Object dest) throws IOException {
+    if(!(dest instanceof Connection) || !isConnected())
+      throw new IOException("No valid connection for client " + dest);
+    
+    return (Connection) dest;
+  }
+  
+  private void accept() {
+    ServerSocketChannel chan = server;
+    IOLoop[] targets = loops;
+    
+    while(chan.isOpen()) {
+      try {
+        SocketChannel client = chan.accept();
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        
+        //spread the connections evenly over the loops.
+        int index = (next.getAndIncrement() & Integer.MAX_VALUE) % targets.length;
+        targets[index].register(client);
+      } catch (ClosedChannelException ex) {
+        break;
+      } catch (IOException ex) {
+        log.log(Level.WARNING, ACCEPT_FAILED, getName());
+        log.log(Level.WARNING, null, ex);
+      }
+    }
+  }
+  
+  private void closeLoops() {
+    IOLoop[] current = loops;
+    if(current == null) return;
+    
+    for(IOLoop loop : current)
+      if(loop != null) loop.close();
+    
+    loops = null;
+  }
+  
+  //a selector and the thread that runs it for a share of the connections.
+  private class IOLoop implements Runnable {
+  
+    public IOLoop() throws IOException {
+      selector = Selector.open();
+      registrations = new ConcurrentLinkedQueue<>();
+      writes = new ConcurrentLinkedQueue<>();
+      connections = new HashSet<>();
+    }
+    
+    @Override
+    public void run() {
+      try {
+        while(selector.isOpen()) {
+          selector.select();
+          
+          registerPending();
+          updateInterest();
+          
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while(it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            
+            handle(key);
+          }
+        }
+      } catch (IOException | ClosedSelectorException ex) {
+        if(selector.isOpen()) log.log(Level.SEVERE, null, ex);
+      } finally {
+        for(Connection conn : new ArrayList<>(connections))
+          conn.close();
+      }
+    }
+    
+    public void register(SocketChannel chan) {
+      registrations.add(chan);
+      selector.wakeup();
+    }
+    
+    public void requestWrite(Connection conn) {
+      writes.add(conn);
+      selector.wakeup();
+    }
+    
+    public void close() {
+      try {
+        selector.close();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, null, ex);
+      }
+    }
+    
+    private final Selector selector;
+    //channels accepted for this loop that have not been registered yet.
+    private final Queue<SocketChannel> registrations;
+    //connections that have new data to write or need to be dropped.
+    private final Queue<Connection> writes;
+    //only used by the thread running this loop.
+    private final Set<Connection> connections;
+    
+    private void registerPending() {
+      for(SocketChannel chan = registrations.poll(); chan != null; chan = registrations.poll()) {
+        try {
+          Connection conn = new Connection(chan, this);
+          conn.key = chan.register(selector, SelectionKey.OP_READ, conn);
+          connections.add(conn);
+          
+          fireClientConnected(conn);
+          log.log(Level.FINE, CLIENT_CONNECTED, conn);
+        } catch (IOException ex) {
+          log.log(Level.WARNING, null, ex);
+          
+          try {
+            chan.close();
+          } catch (IOException e) {
+            log.log(Level.WARNING, null, e);
+          }
+        }
+      }
+    }
+    
+    private void updateInterest() {
+      for(Connection conn = writes.poll(); conn != null; conn = writes.poll()) {
+        if(conn.isDropped())
+          conn.close();
+        else if(conn.key.isValid())
+          conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+    
+    private void handle(SelectionKey key) {
+      Connection conn = (Connection) key.attachment();
+      if(!key.isValid()) return;
+      
+      try {
+        if(key.isReadable()) conn.read();
+        if(key.isValid() && key.isWritable()) conn.write();
+      } catch (IOException ex) {
+        log.log(Level.FINE, null, ex);
+        conn.close();
+      }
+    }
+  }
+  
+  private class Connection {
+  
+    public Connection(SocketChannel chan, IOLoop loop) throws IOException {
+      this.chan = chan;
+      this.loop = loop;
+      
+      address = chan.getRemoteAddress();
+      queue = new ArrayDeque<>();
+      decoder = new FrameDecoder(BufferPool.SHARED,
+        (sysid, payload) -> packetRecieved(this, payload, sysid));
+    }
+    
+    @Override
+    public String toString() {
+      return String.valueOf(address);
+    }
+    
+    private final SocketChannel chan;
+    private final IOLoop loop;
+    private final Object address;
+    private final FrameDecoder decoder;
+    //buffers waiting to be written, guarded by this connection.
+    private final Queue<ByteBuffer> queue;
+    private int queued;
+    private boolean dropped;
+    private boolean closed;
+    private SelectionKey key;
+    
+    private void send(ByteBuffer buf) throws IOException {
+      boolean wake;
+      
+      synchronized(this) {
+        if(closed || dropped) {
+          BufferPool.SHARED.release(buf);
+          throw new IOException("Connection to client " + this + " is closed.");
+        }
+        
+        if(queued + buf.remaining() > MAX_QUEUED) {
+          BufferPool.SHARED.release(buf);
+          log.log(Level.WARNING, CLIENT_TOO_SLOW, this);
+          
+          //the connection is closed by its own loop.
+          dropped = true;
+          loop.requestWrite(this);
+          throw new IOException("Too much data queued for client " + this + ".");
+        }
+        
+        wake = queue.isEmpty();
+        queue.add(buf);
+        queued += buf.remaining();
+      }
+      
+      //only the first message needs to tell the loop there is something to write.
+      if(wake) loop.requestWrite(this);
+    }
+    
+    private synchronized boolean isDropped() {
+      return dropped;
+    }
+    
+    private void read() throws IOException {
+      int read;
+      
+      do {
+        read = decoder.read(chan);
+        decoder.decode();
+      } while(read > 0);
+      
+      if(read < 0) close();
+    }
+    
+    private synchronized void write() throws IOException {
+      while(!queue.isEmpty()) {
+        ByteBuffer buf = queue.peek();
+        int before = buf.remaining();
+        
+        chan.write(buf);
+        queued -= before - buf.remaining();
+        
+        //the socket is full, wait until it can take more.
+        if(buf.hasRemaining()) return;
+        
+        queue.poll();
+        BufferPool.SHARED.release(buf);
+      }
+      
+      key.interestOps(SelectionKey.OP_READ);
+    }
+    
+    private void close() {
+      synchronized(this) {
+        if(closed) return;
+        closed = true;
+        
+        for(ByteBuffer buf : queue)
+          BufferPool.SHARED.release(buf);
+        queue.clear();
+        queued = 0;
+      }
+      
+      if(key != null) key.cancel();
+      loop.connections.remove(this);
+      
+      try {
+        chan.close();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, null, ex);
+      }
+      
+      decoder.release();
+      fireClientDisconnect(this);
+      log.log(Level.FINE, CLIENT_DISCONNECTED, this);
+    }
+  }
+  
+  private static final String locprefix = NIONamedServer.class.getName().toLowerCase();
+  
+  private static final String CONNECTION_OPENED = locprefix + ".connection_opened";
+  private static final String CONNECTION_CLOSED = locprefix + ".connection_closed";
+  private static final String ACCEPT_FAILED = locprefix + ".accept_failed";
+  private static final String CLIENT_CONNECTED = locprefix + ".client_connected";
+  private static final String CLIENT_DISCONNECTED = locprefix + ".client_disconnected";
+  private static final String CLIENT_TOO_SLOW = locprefix + ".client_too_slow";
+  
+  private static final Logger log = Logger.getLogger(locprefix,
+    System.getProperty("taiga.code.logging.text"));
+}
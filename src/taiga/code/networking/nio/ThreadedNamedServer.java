@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2015 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+
+package taiga.code.networking.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import taiga.code.networking.BufferPool;
+import taiga.code.networking.FrameDecoder;
+import taiga.code.networking.Framing;
+import taiga.code.networking.NetworkManager;
+
+/**
+ * A server {@link NetworkManager} that gives each connection its own thread
+ * using blocking reads and writes.  This is simpler than the event loops of
+ * {@link NIONamedServer} and can be compared against it for a given workload.
+ * 
+ * The connection threads are created by a {@link ThreadFactory} that can be
+ * given to the constructor, so lighter weight threads can be used where the
+ * platform has them.  Connections are accepted on a separate normal thread.  Messages are handled on the thread of the connection they arrived
+ * on, and sending to a client blocks while its socket buffer is full.
+ * Closing the server closes every connection and waits for their threads
+ * to finish.
+ * 
+ * @author russell
+ */
+public class ThreadedNamedServer extends NetworkManager {
+  private static final long serialVersionUID = 1L;
+  
+  /**
+   * Creates a new {@link ThreadedNamedServer} that uses normal threads.
+   * 
+   * @param name The name for the server.
+   */
+  public ThreadedNamedServer(String name) {
+    this(name, null);
+  }
+  
+  /**
+   * Creates a new {@link ThreadedNamedServer} that creates its threads with
+   * the given {@link ThreadFactory}.
+   * 
+   * @param name The name for the server.
+   * @param factory The {@link ThreadFactory} for the connection threads, or
+   * null to use normal threads.
+   */
+  public ThreadedNamedServer(String name, ThreadFactory factory) {
+    super(name);
+    
+    if(factory == null) {
+      AtomicInteger count = new AtomicInteger();
+      factory = (r) -> new Thread(r, name + "-connection-" + count.incrementAndGet());
+    }
+    
+    this.factory = factory;
+    connections = ConcurrentHashMap.newKeySet();
+  }
+  
+  /**
+   * Starts accepting connections on the given port of the local host.
+   * 
+   * @param port The port to listen on.
+   * @throws IOException If the port could not be opened.
+   */
+  public void openConnection(int port) throws IOException {
+    openConnection(new InetSocketAddress(InetAddress.getLocalHost(), port));
+  }
+  
+  /**
+   * Starts accepting connections on the given address.
+   * 
+   * @param addr The address to listen on.
+   * @throws IOException If the address could not be opened.
+   */
+  public synchronized void openConnection(InetSocketAddress addr) throws IOException {
+    log.log(Level.FINEST, "openConnection({0})", addr);
+    if(isConnected()) closeConnection();
+    
+    ServerSocketChannel chan = ServerSocketChannel.open();
+    chan.bind(addr);
+    server = chan;
+    
+    //the acceptor lives as long as the server so it is always a normal thread.
+    acceptor = new Thread(this::accept, getName() + "-acceptor");
+    acceptor.start();
+    
+    log.log(Level.INFO, CONNECTION_OPENED, chan.getLocalAddress());
+  }
+  
+  /**
+   * Stops accepting connections, closes all of the connections and waits for
+   * their threads to finish, up to the time out of this {@link NetworkManager}.
+   */
+  public synchronized void closeConnection() {
+    if(server == null) return;
+    
+    try {
+      server.close();
+    } catch (IOException ex) {
+      log.log(Level.WARNING, null, ex);
+    }
+    
+    long timeout = System.currentTimeMillis() + getTimeout();
+    try {
+      //no new connections can be added once the acceptor is done.
+      acceptor.join(getTimeout());
+      
+      List<Thread> threads = new ArrayList<>();
+      for(Connection conn : connections) {
+        threads.add(conn.thread);
+        conn.close();
+      }
+      
+      //the threads notify the objects of the disconnects before finishing.
+      for(Thread thread : threads) {
+        long remaining = timeout - System.currentTimeMillis();
+        if(remaining > 0) thread.join(remaining);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    
+    server = null;
+    acceptor = null;
+    
+    log.log(Level.INFO, CONNECTION_CLOSED, getName());
+  }
+  
+  /**
+   * Returns the address that this {@link ThreadedNamedServer} is accepting
+   * connections on.
+   * 
+   * @return The local address or null if it is not open.
+   */
+  public InetSocketAddress getAddress() {
+    ServerSocketChannel chan = server;
+    
+    try {
+      return chan == null ? null : (InetSocketAddress) chan.getLocalAddress();
+    } catch (IOException ex) {
+      return null;
+    }
+  }
+  
+  @Override
+  public boolean isServer() {
+    return true;
+  }
+  
+  @Override
+  public boolean isClient() {
+    return false;
+  }
+  
+  @Override
+  public boolean isConnected() {
+    ServerSocketChannel chan = server;
+    
+    return chan != null && chan.isOpen();
+  }
+  
+  @Override
+  protected void sendPacket(Object dest, short sysid, byte[] msg) throws IOException {
+    sendPackets(dest, new short[]{sysid}, new byte[][]{msg}, 1);
+  }
+  
+  @Override
+  protected void sendPackets(Object dest, short[] sysids, byte[][] msgs, int count) throws IOException {
+    if(!(dest instanceof Connection) || !isConnected())
+      throw new IOException("No valid connection for client " + dest);
+    
+    Connection conn = (Connection) dest;
+    
+    //a lock instead of a monitor so that virtual threads are not pinned while blocked.
+    conn.writelock.lock();
+    try {
+      Framing.write(conn.chan, sysids, msgs, count);
+    } finally {
+      conn.writelock.unlock();
+    }
+  }
+  
+  private final ThreadFactory factory;
+  private final Set<Connection> connections;
+  private volatile ServerSocketChannel server;
+  private Thread acceptor;
+  
+  private void accept() {
+    ServerSocketChannel chan = server;
+    
+    while(chan.isOpen()) {
+      try {
+        SocketChannel client = chan.accept();
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        
+        Connection conn = new Connection(client);
+        conn.thread = factory.newThread(conn);
+        
+        connections.add(conn);
+        conn.thread.start();
+      } catch (ClosedChannelException ex) {
+        break;
+      } catch (IOException ex) {
+        log.log(Level.WARNING, ACCEPT_FAILED, getName());
+        log.log(Level.WARNING, null, ex);
+      }
+    }
+  }
+  
+  private class Connection implements Runnable {
+  
+    public Connection(SocketChannel chan) throws IOException {
+      this.chan = chan;
+      
+      address = chan.getRemoteAddress();
+      writelock = new ReentrantLock();
+    }
+    
+    @Override
+    public void run() {
+      FrameDecoder decoder = new FrameDecoder(BufferPool.SHARED,
+        (sysid, payload) -> packetRecieved(this, payload, sysid));
+      
+      fireClientConnected(this);
+      log.log(Level.FINE, CLIENT_CONNECTED, this);
+      
+      try {
+        //reads block until there is data, so this only ends with the connection.
+        while(decoder.read(chan) >= 0)
+          decoder.decode();
+      } catch (IOException ex) {
+        if(chan.isOpen()) log.log(Level.FINE, null, ex);
+      } finally {
+        close();
+        decoder.release();
+        connections.remove(this);
+        
+        fireClientDisconnect(this);
+        log.log(Level.FINE, CLIENT_DISCONNECTED, this);
+      }
+    }
+    
+    @Override
+    public String toString() {
+      return String.valueOf(address);
+    }
+    
+    private final SocketChannel chan;
+    private final Object address;
+    private final Lock writelock;
+    private Thread thread;
+    
+    private void close() {
+      try {
+        chan.close();
+      } catch (IOException ex) {
+        log.log(Level.WARNING, null, ex);
+      }
+    }
+  }
+  
+  private static final String locprefix = ThreadedNamedServer.class.getName().toLowerCase();
+  
+  private static final String CONNECTION_OPENED = locprefix + ".connection_opened";
+  private static final String CONNECTION_CLOSED = locprefix + ".connection_closed";
+  private static final String ACCEPT_FAILED = locprefix + ".accept_failed";
+  private static final String CLIENT_CONNECTED = locprefix + ".client_connected";
+  private static final String CLIENT_DISCONNECTED = locprefix + ".client_disconnected";
+  
+  private static final Logger log = Logger.getLogger(locprefix,
+    System.getProperty("taiga.code.logging.text"));
+}
@@ -132,12 +132,12 @@ public class ByteUtils {
    * @return The short value of the bytes.
    */
   public final static short toShort(final byte[] b, final int offset) {
-    short result;
+    int result;
     
-    result = b[offset];
-    result |= (short)(b[offset + 1]) << 8;
+    result = b[offset] & 0xFF;
+    result |= b[offset + 1] << 8;
     
-    return result;
+    return (short) result;
   }
   
   /**
@@ -162,10 +162,10 @@ public class ByteUtils {
   public final static int toInteger(final byte[] b, final int offset) {
     int result;
     
-    result = b[offset];
-    result |= (int)(b[offset + 1]) << 8;
-    result |= (int)(b[offset + 2]) << 16;
-    result |= (int)(b[offset + 3]) << 24;
+    result = b[offset] & 0xFF;
+    result |= (b[offset + 1] & 0xFF) << 8;
+    result |= (b[offset + 2] & 0xFF) << 16;
+    result |= b[offset + 3] << 24;
     
     return result;
   }
@@ -25,11 +25,15 @@ import taiga.code.io.SettingManager;
 import taiga.gpvm.entity.EntityManager;
 import taiga.gpvm.event.MapEventManager;
 import taiga.gpvm.map.MapGenerator;
+import taiga.gpvm.map.RegionCache;
 import taiga.gpvm.map.RegionManager;
+import taiga.gpvm.map.RegionSaver;
+import taiga.gpvm.map.RegionStore;
 import taiga.gpvm.map.Universe;
 import taiga.gpvm.opengl.ResourceManager;
 import taiga.gpvm.registry.EntityRegistry;
 import taiga.gpvm.registry.EntityRenderingRegistry;
+import taiga.gpvm.schedule.ChangeJournal;
 import taiga.gpvm.schedule.WorldUpdater;
 import taiga.gpvm.registry.TileRenderingRegistry;
 import taiga.gpvm.registry.TileRegistry;
@@ -121,6 +125,22 @@ public class HardcodedValues {
    * Name for {@link MapGenerator}s.
    */
   public static final String NAME_MAP_GENERATOR = "generator";
+  /**
+   * Name for {@link RegionStore}s.
+   */
+  public static final String NAME_REGION_STORE = "region-store";
+  /**
+   * Name for the {@link RegionSaver}.
+   */
+  public static final String NAME_REGION_SAVER = "region-saver";
+  /**
+   * Name for the {@link RegionCache}.
+   */
+  public static final String NAME_REGION_CACHE = "region-cache";
+  /**
+   * Name for the {@link ChangeJournal}.
+   */
+  public static final String NAME_CHANGE_JOURNAL = "change-journal";
   /**
    * Name for the {@link GameScreen}
    */
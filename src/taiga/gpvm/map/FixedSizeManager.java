@@ -19,12 +19,25 @@
 
 package taiga.gpvm.map;
 
+import java.util.Collection;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import taiga.gpvm.util.geom.Coordinate;
 
 /**
  * This {@link RegionManager} will load {@link Regions} in a fixed area.  All
  * {@link Region}s in the area will be loaded immediately.
  * 
+ * The area can optionally be loaded by several threads, which is much faster
+ * for large areas since each {@link Region} is generated independently.  The
+ * loading threads only add the {@link Region}s to the {@link World}, its
+ * {@link WorldListener}s are still notified one at a time by the {@link World}
+ * and {@link LoadProgressListener}s are never notified concurrently either.
+ * 
  * @author russell
  */
 public class FixedSizeManager extends RegionManager {
@@ -41,27 +54,164 @@ public class FixedSizeManager extends RegionManager {
    * @param height The distance in the z direction for the area.
    */
   public FixedSizeManager(Coordinate corner, int length, int width, int height) {
+    this(corner, length, width, height, 1);
+  }
+  
+  /**
+   * Creates a new {@link FixedSizeManager} for the rectangular area defined by
+   * the given {@link Coordinate} and size that loads the area using the given
+   * number of threads.  A value less than 1 will use one thread for each
+   * available processor.
+   * 
+   * @param corner The corner {@link Coordinate} of the area to load.
+   * @param length The distance in the x direction for the area.
+   * @param width The distance in the y direction for the area.
+   * @param height The distance in the z direction for the area.
+   * @param threads The number of threads used to load the area.
+   */
+  public FixedSizeManager(Coordinate corner, int length, int width, int height, int threads) {
     start = corner.getRegionCoordinate();
     end = corner.add(length, width, height, new Coordinate());
+    
+    this.threads = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+    
+    xcount = getRegionCount(start.x, end.x);
+    ycount = getRegionCount(start.y, end.y);
+    zcount = getRegionCount(start.z, end.z);
+    
+    loaded = new AtomicInteger();
+    listeners = new CopyOnWriteArrayList<>();
   }
-
+  
+  /**
+   * Adds a {@link LoadProgressListener} that will be notified as the
+   * {@link Region}s in the area are loaded.
+   * 
+   * @param list The {@link LoadProgressListener} to add.
+   */
+  public void addProgressListener(LoadProgressListener list) {
+    listeners.add(list);
+  }
+  
+  /**
+   * Removes a previously added {@link LoadProgressListener}.
+   * 
+   * @param list The {@link LoadProgressListener} to remove.
+   */
+  public void removeProgressListener(LoadProgressListener list) {
+    listeners.remove(list);
+  }
+  
+  /**
+   * Returns the number of {@link Region}s in the area of this {@link FixedSizeManager}.
+   * 
+   * @return The total number of {@link Region}s.
+   */
+  public int getTotalRegions() {
+    return xcount * ycount * zcount;
+  }
+  
+  /**
+   * Returns the number of {@link Region}s that have finished loading.
+   * 
+   * @return The number of loaded {@link Region}s.
+   */
+  public int getLoadedRegions() {
+    return loaded.get();
+  }
+  
   @Override
   protected void mapAttached(World map) {
-    Coordinate target = new Coordinate();
+    long time = System.currentTimeMillis();
+    loaded.set(0);
     
-    for(int i = start.x; i < end.x; i += Region.REGION_SIZE) {
-      for(int j = start.y; j < end.y; j += Region.REGION_SIZE) {
-        for(int k = start.z; k < end.z; k += Region.REGION_SIZE) {
-          target.x = i;
-          target.y = j;
-          target.z = k;
-          
-          map.loadRegion(target);
-        }
+    if(threads == 1) {
+      loadRegions(map, 0, getTotalRegions());
+    } else {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      
+      try {
+        pool.invoke(new LoadTask(map, 0, getTotalRegions()));
+      } finally {
+        pool.shutdown();
       }
     }
+    
+    log.log(Level.FINE, AREA_LOADED, new Object[]{
+      getTotalRegions(), map.getFullName(), System.currentTimeMillis() - time});
   }
   
   private final Coordinate start;
   private final Coordinate end;
+  private final int threads;
+  private final int xcount;
+  private final int ycount;
+  private final int zcount;
+  private final AtomicInteger loaded;
+  private final Collection<LoadProgressListener> listeners;
+  
+  private void loadRegions(World map, int first, int last) {
+    Coordinate target = new Coordinate();
+    
+    //regions are numbered with z changing fastest, same as the nested loops.
+    for(int n = first; n < last; n++) {
+      target.x = start.x + (n / (ycount * zcount)) * Region.REGION_SIZE;
+      target.y = start.y + ((n / zcount) % ycount) * Region.REGION_SIZE;
+      target.z = start.z + (n % zcount) * Region.REGION_SIZE;
+      
+      map.loadRegion(target);
+      
+      fireProgressMade();
+    }
+  }
+  
+  private void fireProgressMade() {
+    //the lock keeps the listeners from being called by several loading threads at once.
+    synchronized(listeners) {
+      int count = loaded.incrementAndGet();
+      
+      for(LoadProgressListener list : listeners)
+        list.progressMade(this, count, getTotalRegions());
+    }
+  }
+  
+  private static int getRegionCount(int first, int last) {
+    if(last <= first) return 0;
+    
+    return (last - first + Region.REGION_SIZE - 1) / Region.REGION_SIZE;
+  }
+  
+  private class LoadTask extends RecursiveAction {
+  
+    public LoadTask(World map, int first, int last) {
+      this.map = map;
+      this.first = first;
+      this.last = last;
+    }
+    
+    @Override
+    protected void compute() {
+      if(last - first <= SPLIT_THRESHOLD) {
+        loadRegions(map, first, last);
+      } else {
+        int mid = (first + last) >>> 1;
+        
+        invokeAll(new LoadTask(map, first, mid), new LoadTask(map, mid, last));
+      }
+    }
+    
+    private final World map;
+    private final int first;
+    private final int last;
+  }
+  
+  //regions loaded by a single task before it stops splitting.
+  private static final int SPLIT_THRESHOLD = 4;
+  
+  private static final String locprefix = FixedSizeManager.class.getName().toLowerCase();
+  
+  private static final String AREA_LOADED = locprefix + ".area_loaded";
+  
+  private static final Logger log = Logger.getLogger(locprefix, 
+    System.getProperty("taiga.code.logging.text"));
 }
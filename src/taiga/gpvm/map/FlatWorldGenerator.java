@@ -48,16 +48,19 @@ public class FlatWorldGenerator extends MapGenerator {
 
   @Override
   public Region generateRegion(Coordinate coor, World parent) {
+    //regions entirely above or below the surface are a single type.
+    if(coor.z > height)
+      return new Region(coor, parent);
+    if(coor.z + Region.REGION_SIZE - 1 <= height)
+      return new Region(coor, parent, type);
+    
     Region result = new Region(coor, parent);
+    int h = height - coor.z;
     
-    if(coor.z <= height) {
-      int h = height - coor.z;
-      
-      for(int i = 0; i < Region.REGION_SIZE; i++) {
-        for(int j = 0; j < Region.REGION_SIZE; j++) {
-          for(int k = 0; k <= h && k < Region.REGION_SIZE; k++) {
-            result.getTile(i, j, k).type = type;
-          }
+    for(int i = 0; i < Region.REGION_SIZE; i++) {
+      for(int j = 0; j < Region.REGION_SIZE; j++) {
+        for(int k = 0; k <= h; k++) {
+          result.setTile(i, j, k, type);
         }
       }
     }
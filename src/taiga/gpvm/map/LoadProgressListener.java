@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+/**
+ * Receives progress updates from a {@link RegionManager} that is loading a
+ * number of {@link Region}s at once.
+ * 
+ * @author russell
+ */
+public interface LoadProgressListener {
+  /**
+   * Called each time a {@link Region} has finished loading.  This may be
+   * called from several threads at the same time.
+   * 
+   * @param manager The {@link RegionManager} that is loading the {@link Region}s.
+   * @param loaded The number of {@link Region}s that have been loaded so far.
+   * @param total The total number of {@link Region}s that will be loaded.
+   */
+  public void progressMade(RegionManager manager, int loaded, int total);
+}
@@ -40,6 +40,8 @@ public abstract class MapGenerator extends NamedObject {
    * Generates a single region.  The methods takes in a coordinate for the
    * the bottom south-west most tile of the region, and a list of adjacent regions.
    * 
+   * This may be called from several threads at the same time.
+   * 
    * @param coor The coordinate of the region
    * @param parent The world that the generated {@link Region} should be a part of.
    * @return The generated region.
@@ -36,6 +36,10 @@ public final class Region {
    * must be a power of 2, because simplicity.
    */
   public static final byte REGION_SIZE = 32;
+  /**
+   * The number of {@link Tile}s in a single {@link Region}.
+   */
+  public static final int REGION_VOLUME = REGION_SIZE * REGION_SIZE * REGION_SIZE;
   private final Coordinate location;
   private final World map;
   
@@ -46,36 +50,59 @@ public final class Region {
    * @param parent The {@link World} that contains this {@link Region}.
    */
   public Region(Coordinate loc, World parent) {
+    this(loc, parent, null);
+  }
+  
+  /**
+   * Constructs a region where every {@link Tile} has the given {@link TileEntry}.
+   * No per {@link Tile} data is allocated until a {@link Tile} is changed to
+   * a different {@link TileEntry}.
+   * 
+   * @param loc The location in the map where this region lies.
+   * @param parent The {@link World} that contains this {@link Region}.
+   * @param fill The {@link TileEntry} for every {@link Tile} or null for air.
+   */
+  public Region(Coordinate loc, World parent, TileEntry fill) {
     map = parent;
     
-    tiles = new Tile[REGION_SIZE * REGION_SIZE * REGION_SIZE];
+    tiles = new TileStorage(REGION_VOLUME, fill);
+    damage = new SparseTileMap();
     location = loc;
     
-    for(int i = tiles.length - 1; i >= 0; i--)
-      tiles[i] = new Tile();
-    
     listeners = new ConcurrentLinkedQueue<>();
   }
   
   /**
-   * Constructs a region with the given {@link Tile} data.
+   * Constructs a region with the given {@link TileEntry} data.
    * 
    * @param data The data to use when creating the {@link Region}, the data should be
-   * laid out using the function z * REGION_SIZE ^ 2 + x * REGION_SIZE + y
+   * laid out using the function z * REGION_SIZE ^ 2 + x * REGION_SIZE + y.  Null
+   * entries are air.
    * @param loc The location of the region in the map.
    * @param parent The {@link World} that contains this {@link Region}.
    */
-  public Region(Tile[] data, Coordinate loc, World parent) {
-    map = parent;
-    assert data.length == REGION_SIZE * REGION_SIZE * REGION_SIZE;
+  public Region(TileEntry[] data, Coordinate loc, World parent) {
+    this(loc, parent);
+    assert data.length == REGION_VOLUME;
     
     for(int i = 0; i < data.length; i++) {
-      if(data[i] == null)
-        data[i] = new Tile();
+      if(data[i] != null)
+        tiles.set(i, data[i]);
     }
+  }
+  
+  private Region(Region source) {
+    map = source.map;
+    treg = source.treg;
+    
+    tiles = source.tiles.snapshot();
+    damage = source.damage.snapshot();
+    location = new Coordinate(source.location.x, source.location.y, source.location.z);
+    version = source.version;
+    savedversion = source.version;
+    contenthash = source.contenthash;
+    hashed = source.hashed;
     
-    tiles = data;
-    location = loc;
     listeners = new ConcurrentLinkedQueue<>();
   }
   
@@ -109,7 +136,8 @@ public final class Region {
   
   /**
    * Retrieves the tile at the given point.  The location is relative to the
-   * origin of the region and not the origin of the map.
+   * origin of the region and not the origin of the map.  The returned {@link Tile}
+   * is a view of this {@link Region} and will reflect later changes to it.
    * 
    * @param x The x coordinate of the tile.
    * @param y The y coordinate of the tile.
@@ -117,14 +145,114 @@ public final class Region {
    * @return The tile at the given point.
    */
   public final Tile getTile(int x, int y, int z) {
-    assert x < REGION_SIZE;
-    assert y < REGION_SIZE;
-    assert z < REGION_SIZE;
-    assert x > 0;
-    assert y > 0;
-    assert z > 0;
-    
-    return tiles[(z * REGION_SIZE * REGION_SIZE) | (x * REGION_SIZE) | y];
+    return new Tile(this, getIndex(x, y, z));
+  }
+  
+  /**
+   * Retrieves the {@link TileEntry} of the tile at the given point.  The location
+   * is relative to the origin of the region and not the origin of the map.
+   * 
+   * @param x The x coordinate of the tile.
+   * @param y The y coordinate of the tile.
+   * @param z The z coordinate of the tile.
+   * @return The {@link TileEntry} at the given point or null for air.
+   */
+  public final TileEntry getTileType(int x, int y, int z) {
+    return tiles.get(getIndex(x, y, z));
+  }
+  
+  /**
+   * Retrieves the damage value of the tile at the given point.  The location
+   * is relative to the origin of the region and not the origin of the map.
+   * 
+   * @param x The x coordinate of the tile.
+   * @param y The y coordinate of the tile.
+   * @param z The z coordinate of the tile.
+   * @return The damage value of the tile.
+   */
+  public final long getDamage(int x, int y, int z) {
+    return getDamage(getIndex(x, y, z));
+  }
+  
+  /**
+   * Checks whether every {@link Tile} in this {@link Region} has the same
+   * {@link TileEntry} and no damage.  Uniform {@link Region}s can be processed
+   * without visiting each {@link Tile}.
+   * 
+   * @return Whether this {@link Region} is uniform.
+   * @see #getUniformType() 
+   */
+  public final boolean isUniform() {
+    return tiles.isUniform() && damage.isEmpty();
+  }
+  
+  /**
+   * Returns the {@link TileEntry} shared by every {@link Tile} in a uniform
+   * {@link Region}.  The result is only meaningful if {@link #isUniform()}
+   * returns true.
+   * 
+   * @return The {@link TileEntry} for the whole {@link Region} or null for air.
+   */
+  public final TileEntry getUniformType() {
+    return tiles.get(0);
+  }
+  
+  /**
+   * Creates a new {@link TileCursor} for the parent {@link World} located at
+   * the origin of this {@link Region}.
+   * 
+   * @return A new {@link TileCursor}.
+   */
+  public TileCursor createCursor() {
+    return new TileCursor(map).moveTo(location.x, location.y, location.z);
+  }
+  
+  /**
+   * Returns an estimate of the number of bytes of memory used by this {@link Region}.
+   * 
+   * @return The approximate memory usage in bytes.
+   */
+  public long getMemoryUsage() {
+    return OBJECT_OVERHEAD + tiles.getMemoryUsage() + damage.getMemoryUsage();
+  }
+  
+  /**
+   * Creates a frozen copy of this {@link Region} that can be read from another
+   * thread, for example to encode it in the background.  The copy is not part
+   * of the {@link World} and will not see later changes to this {@link Region}.
+   * The {@link Tile} data is shared until this {@link Region} is changed, at
+   * which point only the changed parts are copied, so taking a snapshot is
+   * cheap and does not hold up the thread applying changes.
+   * 
+   * @return A snapshot of this {@link Region}.
+   */
+  public Region snapshot() {
+    //changes made through the mutator are made while holding this lock.
+    synchronized(this) {
+      return new Region(this);
+    }
+  }
+  
+  /**
+   * Returns a hash of the {@link TileEntry} and damage of every {@link Tile}
+   * in this {@link Region}.  Two {@link Region}s with the same contents will
+   * have the same hash regardless of how they were created, so the hash can
+   * be used to check whether a copy of a {@link Region} is still current.
+   * 
+   * The hash is calculated the first time it is needed and is then kept up
+   * to date as {@link Tile}s change.
+   * 
+   * @return The content hash of this {@link Region}.
+   */
+  public long getContentHash() {
+    synchronized(this) {
+      if(!hashed) {
+        contenthash = calculateHash();
+        hashed = true;
+      }
+      
+      return contenthash;
+    }
   }
   
   /**
@@ -136,17 +264,207 @@ public final class Region {
   }
   
   protected final void setTile(int x, int y, int z, int type) {
+    setTile(x, y, z, getEntry(type));
+  }
+  
+  protected final void setTile(int x, int y, int z, TileEntry type) {
+    setTileType(getIndex(x, y, z), type);
+  }
+  
+  protected final void setDamage(int x, int y, int z, long value) {
+    setDamage(getIndex(x, y, z), value);
+  }
+  
+  /**
+   * Sets every {@link Tile} in this {@link Region} to the given {@link TileEntry}
+   * and clears all damage.  This will release the per {@link Tile} data.
+   * 
+   * @param type The {@link TileEntry} for every {@link Tile} or null for air.
+   */
+  protected final void fill(TileEntry type) {
+    tiles.fill(type);
+    damage.clear();
+    hashed = false;
+  }
+  
+  /**
+   * Looks up the {@link TileEntry} with the given id in the {@link TileRegistry}
+   * of the parent {@link World}.  Air and unknown ids result in null.
+   * 
+   * @param id The id of the {@link TileEntry}.
+   * @return The {@link TileEntry} or null.
+   */
+  final TileEntry getEntry(int id) {
+    if(id < 0) return null;
     if(treg == null)
       treg = map.getObject(HardcodedValues.NAME_TILE_REGISTRY);
+    if(treg == null) return null;
     
-    setTile(x, y, z, treg.getEntry(type));
+    return treg.getEntry(id);
   }
   
-  protected final void setTile(int x, int y, int z, TileEntry type) {
-    tiles[(z * REGION_SIZE * REGION_SIZE) | (x * REGION_SIZE) | y].type = type;
+  final TileEntry getTileType(int index) {
+    return tiles.get(index);
+  }
+  
+  final void setTileType(int index, TileEntry type) {
+    if(hashed) {
+      long dmg = damage.get(index);
+      contenthash += hashTile(index, type, dmg) - hashTile(index, tiles.get(index), dmg);
+    }
+    
+    tiles.set(index, type);
+  }
+  
+  /**
+   * Returns the number of {@link TileEntry}s in the palette of this {@link Region}.
+   * The palette may include {@link TileEntry}s that are no longer used.
+   * 
+   * @return The size of the palette.
+   */
+  final int getPaletteSize() {
+    return tiles.getPaletteSize();
+  }
+  
+  final TileEntry getPaletteEntry(int index) {
+    return tiles.getPaletteEntry(index);
+  }
+  
+  final int getPaletteIndex(int index) {
+    return tiles.getPaletteIndex(index);
+  }
+  
+  final long getDamage(int index) {
+    return damage.get(index);
+  }
+  
+  final long setDamage(int index, long value) {
+    long old = damage.put(index, value);
+    
+    if(hashed && old != value) {
+      TileEntry type = tiles.get(index);
+      contenthash += hashTile(index, type, value) - hashTile(index, type, old);
+    }
+    
+    return old;
+  }
+  
+  /**
+   * Records that this {@link Region} has been changed.  Changes made through
+   * the {@link WorldMutator} are recorded automatically.
+   */
+  final void markModified() {
+    //only the thread applying changes writes this.
+    version++;
+  }
+  
+  /**
+   * Returns a number that increases each time this {@link Region} is modified.
+   * 
+   * @return The current version of this {@link Region}.
+   */
+  final long getVersion() {
+    return version;
+  }
+  
+  /**
+   * Records that the given version of this {@link Region} has been saved.
+   * 
+   * @param saved The version that was saved.
+   */
+  final void markSaved(long saved) {
+    savedversion = saved;
+  }
+  
+  /**
+   * Checks whether this {@link Region} has changed since it was last saved.
+   * 
+   * @return Whether there are unsaved changes.
+   */
+  final boolean isModified() {
+    return version != savedversion;
+  }
+  
+  /**
+   * Returns the indices of all {@link Tile}s with non-zero damage in ascending
+   * order.
+   * 
+   * @return The indices of the damaged {@link Tile}s.
+   */
+  final int[] getDamagedIndices() {
+    return damage.getSortedIndices();
+  }
+  
+  /**
+   * Returns the index of a {@link Tile} within its {@link Region} from its
+   * absolute location in the {@link World}.
+   * 
+   * @param x The x coordinate of the tile in the {@link World}.
+   * @param y The y coordinate of the tile in the {@link World}.
+   * @param z The z coordinate of the tile in the {@link World}.
+   * @return The index of the {@link Tile} in its {@link Region}.
+   */
+  static int getLocalIndex(int x, int y, int z) {
+    final int mask = REGION_SIZE - 1;
+    
+    return getIndex(x & mask, y & mask, z & mask);
+  }
+  
+  private long calculateHash() {
+    long result = 0;
+    
+    //start with every tile undamaged then correct the damaged ones.
+    for(int i = 0; i < REGION_VOLUME; i++)
+      result += hashTile(i, tiles.get(i), 0);
+    
+    for(int index : damage.getSortedIndices()) {
+      TileEntry type = tiles.get(index);
+      result += hashTile(index, type, damage.get(index)) - hashTile(index, type, 0);
+    }
+    
+    return result;
+  }
+  
+  //the hash of a region is the sum of the hashes of its tiles, so changing a
+  //single tile only needs the hash of its old and new values.
+  private static long hashTile(int index, TileEntry type, long damage) {
+    long h = index * 0x9E3779B97F4A7C15L +
+      (type == null ? 0 : type.getID() + 1) * 0xC2B2AE3D27D4EB4FL +
+      damage * 0x165667B19E3779F9L;
+    
+    //finalizer from murmur3 so that nearby values are spread out.
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    h *= 0xC4CEB9FE1A85EC53L;
+    h ^= h >>> 33;
+    
+    return h;
+  }
+  
+  static int getIndex(int x, int y, int z) {
+    assert x < REGION_SIZE;
+    assert y < REGION_SIZE;
+    assert z < REGION_SIZE;
+    assert x >= 0;
+    assert y >= 0;
+    assert z >= 0;
+    
+    return (z * REGION_SIZE * REGION_SIZE) | (x * REGION_SIZE) | y;
   }
   
   private TileRegistry treg;
   private Collection<RegionListener> listeners;
-  private Tile[] tiles;
+  private final TileStorage tiles;
+  //most tiles are never damaged so only non-zero values are kept.
+  private final SparseTileMap damage;
+  //any additional per tile data should be kept in the same sparse fashion.
+  private volatile long version;
+  private volatile long savedversion;
+  //only valid once it has been calculated.
+  private long contenthash;
+  private boolean hashed;
+  
+  //rough size of the region itself and its location used for memory estimates.
+  private static final int OBJECT_OVERHEAD = 128;
 }
@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * A single file containing the encoded {@link Region}s for a cube of
+ * {@link #AREA_SIZE} {@link Region}s on each side.  The file is divided into
+ * sectors of {@link #SECTOR_SIZE} bytes, the first of which is a header that
+ * holds the first sector and length of each {@link Region}.  Each encoded
+ * {@link Region} occupies a contiguous run of sectors.
+ * 
+ * The file is memory mapped so {@link Region}s are decoded directly from the
+ * mapped file.  A {@link Region} that is written again always goes into a
+ * new run of sectors.  The header is only changed by {@link #flush()} once the
+ * data is on the disk, so a crash leaves either the old or the new copy
+ * intact, and the old sectors can only be reused after that.
+ * 
+ * @author russell
+ */
+final class RegionArchive implements Closeable {
+  
+  /**
+   * The number of {@link Region}s along each axis of the area stored in a
+   * single {@link RegionArchive}.
+   */
+  public static final int AREA_SIZE = 8;
+  /**
+   * The size in bytes of the sectors that the file is divided into.
+   */
+  public static final int SECTOR_SIZE = 4096;
+  
+  /**
+   * Opens the {@link RegionArchive} in the given {@link File}, creating it if
+   * it does not exist.
+   * 
+   * @param file The {@link File} for the {@link RegionArchive}.
+   * @throws IOException If the {@link File} could not be opened.
+   */
+  public RegionArchive(File file) throws IOException {
+    this.file = file;
+    
+    raf = new RandomAccessFile(file, "rw");
+    channel = raf.getChannel();
+    
+    try {
+      //mapping the header extends new files to hold it.
+      header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      used = new BitSet();
+      used.set(0, HEADER_SECTORS);
+      released = new BitSet();
+      staged = new BitSet(ENTRIES);
+      entries = new long[ENTRIES];
+      
+      for(int i = 0; i < ENTRIES; i++) {
+        entries[i] = header.getLong(i * ENTRY_SIZE);
+        int first = getFirst(entries[i]);
+        int length = getLength(entries[i]);
+        
+        if(first == 0) continue;
+        if(first < HEADER_SECTORS || length <= 0 ||
+          (long) first * SECTOR_SIZE + length > channel.size())
+          throw new IOException("Corrupt region archive entry " + i + " in " + file);
+        
+        used.set(first, first + getSectorCount(length));
+      }
+    } catch (IOException ex) {
+      raf.close();
+      throw ex;
+    }
+  }
+  
+  /**
+   * Returns the index of the given {@link Region} location within its
+   * {@link RegionArchive}.
+   * 
+   * @param rx The x index of the {@link Region}.
+   * @param ry The y index of the {@link Region}.
+   * @param rz The z index of the {@link Region}.
+   * @return The index of the entry for the {@link Region}.
+   */
+  public static int getEntryIndex(int rx, int ry, int rz) {
+    final int mask = AREA_SIZE - 1;
+    
+    return ((rx & mask) * AREA_SIZE + (ry & mask)) * AREA_SIZE + (rz & mask);
+  }
+  
+  /**
+   * Checks whether there is a {@link Region} stored at the given index.
+   * 
+   * @param index The index of the entry.
+   * @return Whether the entry contains a {@link Region}.
+   */
+  public synchronized boolean contains(int index) {
+    return getFirst(entries[index]) != 0;
+  }
+  
+  /**
+   * Decodes the {@link Region} stored at the given index directly from the
+   * mapped file.  The {@link Region} is not added to the {@link World}.
+   * 
+   * @param index The index of the entry.
+   * @param world The {@link World} that the {@link Region} will belong to.
+   * @return The decoded {@link Region} or null if there is not one stored.
+   * @throws IOException If the {@link Region} could not be read.
+   */
+  public synchronized Region read(int index, World world) throws IOException {
+    int first = getFirst(entries[index]);
+    int length = getLength(entries[index]);
+    if(first == 0) return null;
+    
+    long end = (long) first * SECTOR_SIZE + length;
+    if(data == null || data.capacity() < end)
+      data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    
+    ByteBuffer view = data.duplicate();
+    view.position(first * SECTOR_SIZE);
+    view.limit((int) end);
+    
+    return RegionEncoder.read(view, world);
+  }
+  
+  /**
+   * Stores an encoded {@link Region} at the given index replacing any
+   * {@link Region} already there.
+   * 
+   * @param index The index of the entry.
+   * @param encoded The encoded {@link Region}.
+   * @param length The number of bytes of the encoded {@link Region}.
+   * @throws IOException If the {@link Region} could not be written.
+   */
+  public synchronized void write(int index, byte[] encoded, int length) throws IOException {
+    int oldfirst = getFirst(entries[index]);
+    int oldcount = oldfirst == 0 ? 0 : getSectorCount(getLength(entries[index]));
+    int count = getSectorCount(length);
+    
+    //the old copy stays untouched until the header no longer refers to it.
+    int first = findFreeRun(count);
+    
+    ByteBuffer src = ByteBuffer.wrap(encoded, 0, length);
+    long pos = (long) first * SECTOR_SIZE;
+    while(src.hasRemaining())
+      pos += channel.write(src, pos);
+    
+    used.set(first, first + count);
+    if(oldfirst != 0) released.set(oldfirst, oldfirst + oldcount);
+    
+    //the header on the disk is only changed by flush once the data is there.
+    entries[index] = ((long) first << 32) | (length & 0xFFFFFFFFL);
+    staged.set(index);
+  }
+  
+  /**
+   * Forces all writes to this {@link RegionArchive} to the disk.  The header
+   * only refers to the new copies of {@link Region}s once their data has been
+   * forced, and sectors that held replaced {@link Region}s can only be reused
+   * after this.
+   * 
+   * @throws IOException If the data could not be written.
+   */
+  public synchronized void flush() throws IOException {
+    if(staged.isEmpty()) return;
+    
+    channel.force(false);
+    
+    //both halves of an entry are written at once so it is never torn.
+    for(int i = staged.nextSetBit(0); i >= 0; i = staged.nextSetBit(i + 1))
+      header.putLong(i * ENTRY_SIZE, entries[i]);
+    header.force();
+    
+    staged.clear();
+    used.andNot(released);
+    released.clear();
+  }
+  
+  @Override
+  public synchronized void close() throws IOException {
+    flush();
+    
+    data = null;
+    raf.close();
+  }
+  
+  /**
+   * Returns the {@link File} that this {@link RegionArchive} is stored in.
+   * 
+   * @return The {@link File} for this {@link RegionArchive}.
+   */
+  public File getFile() {
+    return file;
+  }
+  
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final MappedByteBuffer header;
+  //sectors that are currently holding data, including the header.
+  private final BitSet used;
+  //sectors of replaced regions that the header on the disk may still refer to.
+  private final BitSet released;
+  //first sector and length of each entry including writes that are not in the header yet.
+  private final long[] entries;
+  //entries that have changed since the header was last written.
+  private final BitSet staged;
+  //read only mapping of the file, remapped when the file grows past it.
+  private MappedByteBuffer data;
+  
+  private int findFreeRun(int count) {
+    int start = used.nextClearBit(HEADER_SECTORS);
+    
+    while(true) {
+      int next = used.nextSetBit(start);
+      
+      //everything past the last used sector is free.
+      if(next < 0 || next - start >= count) return start;
+      
+      start = used.nextClearBit(next);
+    }
+  }
+  
+  private static int getFirst(long entry) {
+    return (int) (entry >>> 32);
+  }
+  
+  private static int getLength(long entry) {
+    return (int) entry;
+  }
+  
+  private static int getSectorCount(int length) {
+    return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+  }
+  
+  private static final int ENTRIES = AREA_SIZE * AREA_SIZE * AREA_SIZE;
+  //first sector and length for each entry.
+  private static final int ENTRY_SIZE = 8;
+  private static final int HEADER_SIZE = ENTRIES * ENTRY_SIZE;
+  private static final int HEADER_SECTORS = (HEADER_SIZE + SECTOR_SIZE - 1) / SECTOR_SIZE;
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import taiga.code.registration.NamedObject;
+import taiga.gpvm.HardcodedValues;
+import taiga.gpvm.util.geom.Coordinate;
+
+/**
+ * Keeps encoded copies of {@link Region}s received from a server along with
+ * their content hashes.  When a {@link Region} is requested again the hash is
+ * sent with the request, and if the {@link Region} has not changed the server
+ * only has to confirm it instead of sending it again.
+ * 
+ * A {@link RegionCache} with a directory keeps the {@link Region}s on the disk
+ * so that they survive reconnecting and restarting.  Each {@link Region} is
+ * a file in a folder for its {@link World}, named after its location and hash,
+ * so no separate index is needed.  The folders are named after the hex encoded
+ * names of the {@link World}s since those are chosen by the server.  Files are written by a background thread
+ * and only the {@link Region}s that have not been written yet are kept in
+ * memory.
+ * 
+ * The least recently used {@link Region}s are dropped once the cached data
+ * grows past the size limit.  The modification time of each file is used to
+ * restore the order of use after a restart.
+ * 
+ * @author russell
+ */
+public class RegionCache extends NamedObject {
+
+  /**
+   * Creates a new {@link RegionCache} that only keeps {@link Region}s in memory.
+   * 
+   * @param maxbytes The maximum number of bytes of encoded {@link Region}s to keep.
+   */
+  public RegionCache(long maxbytes) {
+    this(null, maxbytes);
+  }
+  
+  /**
+   * Creates a new {@link RegionCache} that keeps {@link Region}s in the given
+   * directory.
+   * 
+   * @param dir The directory for the cached {@link Region}s, or null to only
+   * keep them in memory.
+   * @param maxbytes The maximum number of bytes of encoded {@link Region}s to keep.
+   */
+  public RegionCache(File dir, long maxbytes) {
+    super(HardcodedValues.NAME_REGION_CACHE);
+    
+    this.dir = dir;
+    this.maxbytes = maxbytes;
+    
+    //access order so that the eldest entry is the least recently used.
+    entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+    
+    if(dir != null) {
+      writer = Executors.newSingleThreadExecutor((r) -> {
+        Thread result = new Thread(r, HardcodedValues.NAME_REGION_CACHE + "-writer");
+        result.setDaemon(true);
+        return result;
+      });
+    } else {
+      writer = null;
+    }
+  }
+  
+  /**
+   * Returns the content hash of the cached copy of a {@link Region}.
+   * 
+   * @param world The {@link World} of the {@link Region}.
+   * @param coor The location of the {@link Region}.
+   * @return The hash of the cached {@link Region} or null if it is not cached.
+   */
+  public synchronized Long getHash(World world, Coordinate coor) {
+    load();
+    Entry ent = entries.get(new Key(RegionStore.getFolderName(world), coor));
+    
+    return ent == null ? null : ent.hash;
+  }
+  
+  /**
+   * Returns the cached encoding of a {@link Region} if it has the given hash.
+   * 
+   * @param world The {@link World} of the {@link Region}.
+   * @param coor The location of the {@link Region}.
+   * @param hash The expected content hash of the {@link Region}.
+   * @return The encoded {@link Region} or null if it is not cached or has a
+   * different hash.
+   */
+  public byte[] get(World world, Coordinate coor, long hash) {
+    Key key = new Key(RegionStore.getFolderName(world), coor);
+    File file;
+    
+    synchronized(this) {
+      load();
+      
+      Entry ent = entries.get(key);
+      if(ent == null || ent.hash != hash) return null;
+      if(ent.data != null) return ent.data;
+      
+      file = getFile(key, hash);
+    }
+    
+    //read outside of the lock so that other lookups do not wait on the disk.
+    try {
+      byte[] result = Files.readAllBytes(file.toPath());
+      file.setLastModified(System.currentTimeMillis());
+      
+      return result;
+    } catch (IOException ex) {
+      log.log(Level.WARNING, READ_FAILED, file);
+      remove(world, coor);
+      
+      return null;
+    }
+  }
+  
+  /**
+   * Adds an encoded {@link Region} to this {@link RegionCache} replacing any
+   * previous copy.
+   * 
+   * @param world The {@link World} of the {@link Region}.
+   * @param coor The location of the {@link Region}.
+   * @param hash The content hash of the {@link Region}.
+   * @param data An array containing the encoded {@link Region}.
+   * @param off The offset of the encoded {@link Region} in the array.
+   * @param len The length of the encoded {@link Region}.
+   */
+  public synchronized void put(World world, Coordinate coor, long hash, byte[] data, int off, int len) {
+    if(len > maxbytes) return;
+    load();
+    
+    byte[] copy = new byte[len];
+    System.arraycopy(data, off, copy, 0, len);
+    
+    add(new Key(RegionStore.getFolderName(world), coor), new Entry(hash, copy, len));
+  }
+  
+  /**
+   * Adds an encoded {@link Region} to this {@link RegionCache} replacing any
+   * previous copy.  The position of the buffer is not changed.
+   * 
+   * @param world The {@link World} of the {@link Region}.
+   * @param coor The location of the {@link Region}.
+   * @param hash The content hash of the {@link Region}.
+   * @param data The remaining bytes of this buffer are the encoded {@link Region}.
+   */
+  public synchronized void put(World world, Coordinate coor, long hash, ByteBuffer data) {
+    int len = data.remaining();
+    if(len > maxbytes) return;
+    load();
+    
+    byte[] copy = new byte[len];
+    data.duplicate().get(copy);
+    
+    add(new Key(RegionStore.getFolderName(world), coor), new Entry(hash, copy, len));
+  }
+  
+  /**
+   * Removes the cached copy of a {@link Region}.
+   * 
+   * @param world The {@link World} of the {@link Region}.
+   * @param coor The location of the {@link Region}.
+   */
+  public synchronized void remove(World world, Coordinate coor) {
+    load();
+    
+    Key key = new Key(RegionStore.getFolderName(world), coor);
+    discard(key, entries.remove(key));
+  }
+  
+  /**
+   * Returns the number of bytes of encoded {@link Region}s in this {@link RegionCache}.
+   * 
+   * @return The size of the cached data.
+   */
+  public synchronized long getSize() {
+    load();
+    
+    return size;
+  }
+  
+  /**
+   * Waits for all of the {@link Region}s added so far to be written to the disk.
+   */
+  public void flush() {
+    if(writer == null) return;
+    
+    try {
+      writer.submit(() -> {}).get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException ex) {
+      log.log(Level.SEVERE, null, ex);
+    }
+  }
+  
+  private final File dir;
+  private final long maxbytes;
+  private final LinkedHashMap<Key, Entry> entries;
+  private final ExecutorService writer;
+  private long size;
+  private boolean loaded;
+  
+  private void load() {
+    if(loaded || dir == null) {
+      loaded = true;
+      return;
+    }
+    
+    loaded = true;
+    
+    File[] worlds = dir.listFiles(File::isDirectory);
+    if(worlds == null) return;
+    
+    List<File> files = new ArrayList<>();
+    for(File world : worlds) {
+      File[] regs = world.listFiles();
+      if(regs == null) continue;
+      
+      for(File reg : regs) {
+        //left over from a write that did not finish.
+        if(reg.getName().endsWith(TEMP_EXTENSION)) reg.delete();
+        else if(reg.getName().endsWith(FILE_EXTENSION)) files.add(reg);
+      }
+    }
+    
+    //add the most recently used last so that they are evicted last.
+    files.sort((a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+    
+    for(File file : files) {
+      String[] parts = file.getName().split("\\.");
+      
+      try {
+        Coordinate coor = new Coordinate(
+          Integer.parseInt(parts[0]),
+          Integer.parseInt(parts[1]),
+          Integer.parseInt(parts[2]));
+        long hash = Long.parseUnsignedLong(parts[3], 16);
+        int len = (int) file.length();
+        
+        Key key = new Key(file.getParentFile().getName(), coor);
+        discard(key, entries.put(key, new Entry(hash, null, len)));
+        size += len;
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+        log.log(Level.WARNING, UNKNOWN_FILE, file);
+      }
+    }
+    
+    log.log(Level.INFO, CACHE_LOADED, new Object[]{entries.size(), size, dir});
+    evict();
+  }
+  
+  private void evict() {
+    Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+    
+    while(size > maxbytes && it.hasNext()) {
+      Map.Entry<Key, Entry> ent = it.next();
+      it.remove();
+      
+      discard(ent.getKey(), ent.getValue());
+    }
+  }
+  
+  private void add(Key key, Entry ent) {
+    discard(key, entries.put(key, ent));
+    size += ent.length;
+    
+    if(writer != null) writer.execute(() -> write(key, ent));
+    
+    evict();
+  }
+  
+  private void discard(Key key, Entry ent) {
+    if(ent == null) return;
+    
+    size -= ent.length;
+    
+    //this runs after any pending write of the same file.
+    if(writer != null) {
+      File file = getFile(key, ent.hash);
+      writer.execute(() -> file.delete());
+    }
+  }
+  
+  private void write(Key key, Entry ent) {
+    File file = getFile(key, ent.hash);
+    File temp = new File(file.getPath() + TEMP_EXTENSION);
+    
+    try {
+      file.getParentFile().mkdirs();
+      Files.write(temp.toPath(), ent.data);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException ex) {
+      log.log(Level.WARNING, WRITE_FAILED, file);
+      temp.delete();
+      
+      //keep it in memory instead.
+      return;
+    }
+    
+    synchronized(this) {
+      ent.data = null;
+    }
+  }
+  
+  private File getFile(Key key, long hash) {
+    return new File(new File(dir, key.folder),
+      key.x + "." + key.y + "." + key.z + "." + Long.toHexString(hash) + FILE_EXTENSION);
+  }
+  
+  private static class Key {
+  
+    public Key(String folder, Coordinate coor) {
+      this.folder = folder;
+      
+      x = coor.x;
+      y = coor.y;
+      z = coor.z;
+    }
+    
+    public final String folder;
+    public final int x;
+    public final int y;
+    public final int z;
+    
+    @Override
+    public int hashCode() {
+      return ((folder.hashCode() * 31 + x) * 31 + y) * 31 + z;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof Key)) return false;
+      
+      Key other = (Key) obj;
+      return x == other.x && y == other.y && z == other.z && folder.equals(other.folder);
+    }
+  }
+  
+  private static class Entry {
+  
+    public Entry(long hash, byte[] data, int length) {
+      this.hash = hash;
+      this.data = data;
+      this.length = length;
+    }
+    
+    public final long hash;
+    public final int length;
+    //only kept until it has been written to the disk.
+    public byte[] data;
+  }
+  
+  private static final String FILE_EXTENSION = ".rgc";
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final int INITIAL_CAPACITY = 256;
+  private static final float LOAD_FACTOR = 0.75f;
+  
+  private static final String locprefix = RegionCache.class.getName().toLowerCase();
+  
+  private static final String CACHE_LOADED = locprefix + ".cache_loaded";
+  private static final String READ_FAILED = locprefix + ".read_failed";
+  private static final String WRITE_FAILED = locprefix + ".write_failed";
+  private static final String UNKNOWN_FILE = locprefix + ".unknown_file";
+  
+  private static final Logger log = Logger.getLogger(locprefix, 
+    System.getProperty("taiga.code.logging.text"));
+}
@@ -20,18 +20,41 @@
 package taiga.gpvm.map;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import taiga.code.io.ByteBufferInputStream;
+import taiga.code.networking.MessageWriter;
 import taiga.code.util.ByteUtils;
 import taiga.gpvm.registry.TileEntry;
 import taiga.gpvm.util.geom.Coordinate;
 
 /**
- * Handles the encoding of {@link Region}s into bytes or vice versa.  The
- * encoding will also compress the data.
+ * Handles the encoding of {@link Region}s into bytes or vice versa.
+ * 
+ * {@link Region}s are encoded with a short header giving the version of the
+ * format and the location of the {@link Region}, followed by the body.  The
+ * body lists the palette of {@link TileEntry} ids used by the {@link Region},
+ * then runs of palette indices and finally runs of damage values.  All counts
+ * and values in the body are variable length integers, and larger bodies are
+ * compressed with Deflate.
+ * 
+ * Besides streams and arrays, {@link Region}s can be encoded directly into and
+ * decoded directly from {@link ByteBuffer}s, which allows the encoded data to
+ * be placed straight into a network packet or a mapped file.
+ * 
+ * The original format with no header, fixed size tile ids and runs can still
+ * be decoded.  It always begins with the x coordinate of the {@link Region},
+ * which is a multiple of {@link Region#REGION_SIZE}, so its first byte can
+ * never match the first byte of the header.
  * 
  * @author Russell Smith
  */
@@ -44,15 +67,26 @@ public class RegionEncoder {
    * @return An array of bytes for the encoded {@link Region}.
    */
   public static final byte[] encode(Region reg) {
-    ByteArrayOutputStream out = new ByteArrayOutputStream(32000);
+    return encode(reg, 0);
+  }
+  
+  /**
+   * Encodes a given {@link Region} into a new array leaving the given number
+   * of bytes free at the start.  This allows a packet header to be written in
+   * front of the {@link Region} without copying it again.
+   * 
+   * @param reg The {@link Region} to encode.
+   * @param offset The number of bytes to leave before the encoded {@link Region}.
+   * @return An array of bytes with the encoded {@link Region} after the offset.
+   */
+  public static final byte[] encode(Region reg, int offset) {
+    Encoder enc = prepare(reg, true);
+    byte[] result = new byte[offset + enc.headerlength + enc.length];
     
-    try {
-      encode(reg, out);
-    } catch (IOException ex) {
-      assert false;
-    }
+    System.arraycopy(enc.header, 0, result, offset, enc.headerlength);
+    System.arraycopy(enc.data, 0, result, offset + enc.headerlength, enc.length);
     
-    return out.toByteArray();
+    return result;
   }
   
   /**
@@ -65,16 +99,83 @@ public class RegionEncoder {
    * {@link Region} to the stream.
    */
   public static final void encode(Region reg, OutputStream out) throws IOException {
-    byte[] idata = new byte[8];
+    encode(reg, out, true);
+  }
+  
+  /**
+   * Encodes the given {@link Region} and writes the result to the given
+   * {@link OutputStream}.
+   * 
+   * @param reg The {@link Region} to encode.
+   * @param out The {@link OutputStream} to write the encoded {@link Region} to.
+   * @param compress Whether the body may be compressed.  Compression is skipped
+   * for small bodies or if it would not make them smaller.
+   * @throws java.io.IOException Thrown if there is an error writing the encoded
+   * {@link Region} to the stream.
+   */
+  public static final void encode(Region reg, OutputStream out, boolean compress) throws IOException {
+    Encoder enc = prepare(reg, compress);
     
-    Coordinate loc = reg.getLocation();
-    //encode the location, including world id first.
-    out.write(ByteUtils.toBytes(loc.x, 0, idata), 0, 4);
-    out.write(ByteUtils.toBytes(loc.y, 0, idata), 0, 4);
-    out.write(ByteUtils.toBytes(loc.z, 0, idata), 0, 4);
+    out.write(enc.header, 0, enc.headerlength);
+    out.write(enc.data, 0, enc.length);
+  }
+  
+  /**
+   * Encodes the given {@link Region} into the given {@link ByteBuffer} starting
+   * at its current position.  The position is advanced past the encoded
+   * {@link Region}.
+   * 
+   * @param reg The {@link Region} to encode.
+   * @param out The {@link ByteBuffer} to write to, this may be a direct buffer.
+   * @return The number of bytes written.
+   * @throws BufferOverflowException If the encoded {@link Region} does not fit
+   * in the remaining space, in which case nothing is written.
+   */
+  public static final int encode(Region reg, ByteBuffer out) {
+    return encode(reg, out, true);
+  }
+  
+  /**
+   * Encodes the given {@link Region} into the given {@link ByteBuffer} starting
+   * at its current position.  The position is advanced past the encoded
+   * {@link Region}.
+   * 
+   * @param reg The {@link Region} to encode.
+   * @param out The {@link ByteBuffer} to write to, this may be a direct buffer.
+   * @param compress Whether the body may be compressed.
+   * @return The number of bytes written.
+   * @throws BufferOverflowException If the encoded {@link Region} does not fit
+   * in the remaining space, in which case nothing is written.
+   */
+  public static final int encode(Region reg, ByteBuffer out, boolean compress) {
+    Encoder enc = prepare(reg, compress);
+    int total = enc.headerlength + enc.length;
+    if(out.remaining() < total) throw new BufferOverflowException();
+    
+    out.put(enc.header, 0, enc.headerlength);
+    out.put(enc.data, 0, enc.length);
+    
+    return total;
+  }
+  
+  /**
+   * Encodes the given {@link Region} at the end of a message.  The
+   * {@link MessageWriter} is grown to fit the {@link Region} so it is only
+   * encoded once.
+   * 
+   * @param reg The {@link Region} to encode.
+   * @param out The {@link MessageWriter} to write to.
+   * @return The number of bytes written.
+   */
+  public static final int encode(Region reg, MessageWriter out) {
+    Encoder enc = prepare(reg, true);
+    int total = enc.headerlength + enc.length;
+    
+    ByteBuffer buf = out.reserve(total);
+    buf.put(enc.header, 0, enc.headerlength);
+    buf.put(enc.data, 0, enc.length);
     
-    encodeTiles(reg, out, idata);
-    encodeDamage(reg, out, idata);
+    return total;
   }
   
   /**
@@ -105,109 +206,557 @@ public class RegionEncoder {
    * the {@link InputStream}.
    */
   public static final Region decode(InputStream in, World world) throws IOException {
+    Region out = read(in, world);
+    
+    world.addRegion(out);
+    return out;
+  }
+  
+  /**
+   * Decodes a {@link Region} from the remaining bytes of the given {@link ByteBuffer}
+   * and places it in the given {@link World}.  The position of the
+   * {@link ByteBuffer} is advanced past the encoded {@link Region}.
+   * 
+   * @param in The {@link ByteBuffer} to read from, this may be a direct buffer.
+   * @param world The {@link World} to place the {@link Region} in.
+   * @return The decoded {@link Region}.
+   * @throws IOException if the {@link ByteBuffer} does not contain a valid
+   * {@link Region}.
+   */
+  public static final Region decode(ByteBuffer in, World world) throws IOException {
+    Region out = read(in, world);
+    
+    world.addRegion(out);
+    return out;
+  }
+  
+  /**
+   * Decodes a {@link Region} from the given {@link InputStream} without adding
+   * it to the {@link World}.
+   * 
+   * @param in The {@link InputStream} to extract the {@link Region} from.
+   * @param world The {@link World} the {@link Region} will belong to.
+   * @return The decoded {@link Region}.
+   * @throws IOException if there is a problem reading the {@link Region} from
+   * the {@link InputStream}.
+   */
+  static Region read(InputStream in, World world) throws IOException {
     assert world != null;
     assert in != null;
     
-    byte[] idata = new byte[8];
-    Coordinate loc = new Coordinate();
+    byte[] idata = new byte[HEADER_LENGTH];
+    readFully(in, idata, 0, 12);
+    
+    //the first format starts with the location.
+    if(!hasHeader(idata)) return readVersion1(in, world, idata);
+    
+    if(idata[MAGIC.length - 1] != VERSION)
+      throw new IOException("Unsupported region format " + idata[MAGIC.length - 1]);
+    
+    readFully(in, idata, 12, HEADER_LENGTH - 12);
+    
+    int length = readVarInt(in);
+    int rawlength = (idata[MAGIC.length] & FLAG_DEFLATE) != 0 ? readVarInt(in) : length;
+    checkLength(length, rawlength);
+    
+    byte[] body = new byte[length];
+    readFully(in, body, 0, length);
+    
+    return readBody(world, idata, body, 0, length, rawlength);
+  }
+  
+  /**
+   * Decodes a {@link Region} from the given {@link ByteBuffer} without adding
+   * it to the {@link World}.  The body is read in place if the {@link ByteBuffer}
+   * is backed by an array.
+   * 
+   * @param in The {@link ByteBuffer} to read from.
+   * @param world The {@link World} the {@link Region} will belong to.
+   * @return The decoded {@link Region}.
+   * @throws IOException if the {@link ByteBuffer} does not contain a valid
+   * {@link Region}.
+   */
+  static Region read(ByteBuffer in, World world) throws IOException {
+    assert world != null;
+    assert in != null;
+    
+    if(in.remaining() < 12) throw new EOFException();
+    
+    byte[] idata = new byte[HEADER_LENGTH];
+    int start = in.position();
+    in.get(idata, 0, 12);
+    
+    if(!hasHeader(idata)) {
+      in.position(start);
+      return read(new ByteBufferInputStream(in), world);
+    }
+    
+    if(idata[MAGIC.length - 1] != VERSION)
+      throw new IOException("Unsupported region format " + idata[MAGIC.length - 1]);
+    if(in.remaining() < HEADER_LENGTH - 12) throw new EOFException();
+    
+    in.get(idata, 12, HEADER_LENGTH - 12);
+    
+    int length = readVarInt(in);
+    int rawlength = (idata[MAGIC.length] & FLAG_DEFLATE) != 0 ? readVarInt(in) : length;
+    checkLength(length, rawlength);
+    if(in.remaining() < length) throw new EOFException();
+    
+    byte[] body;
+    int offset;
+    if(in.hasArray()) {
+      body = in.array();
+      offset = in.arrayOffset() + in.position();
+      in.position(in.position() + length);
+    } else {
+      body = new byte[length];
+      offset = 0;
+      in.get(body);
+    }
+    
+    return readBody(world, idata, body, offset, length, rawlength);
+  }
+  
+  private static Region readBody(World world, byte[] header, byte[] data, int offset, int length, int rawlength) throws IOException {
+    Coordinate loc = new Coordinate(
+      ByteUtils.toInteger(header, LOCATION_OFFSET),
+      ByteUtils.toInteger(header, LOCATION_OFFSET + 4),
+      ByteUtils.toInteger(header, LOCATION_OFFSET + 8));
+    
+    if((header[MAGIC.length] & FLAG_DEFLATE) != 0) {
+      data = inflate(data, offset, length, rawlength);
+      offset = 0;
+      length = rawlength;
+    }
+    
     Region out = new Region(loc, world);
+    BodyReader reader = new BodyReader(data, offset, offset + length);
+    TileEntry[] palette = decodePalette(out, reader);
+    
+    decodeTiles(out, reader, palette);
+    decodeDamage(out, reader);
+    
+    return out;
+  }
+  
+  private static void checkLength(int length, int rawlength) throws IOException {
+    if(length < 0 || length > MAX_BODY || rawlength < 0 || rawlength > MAX_BODY)
+      throw new IOException("Invalid region body length " + rawlength);
+  }
+  
+  private static Encoder prepare(Region reg, boolean compress) {
+    Encoder enc = ENCODER.get();
+    enc.reset();
+    
+    encodePalette(reg, enc);
+    encodeTiles(reg, enc);
+    encodeDamage(reg, enc);
+    
+    enc.data = enc.body;
+    enc.length = enc.size;
+    int flags = 0;
+    
+    if(compress && enc.size >= COMPRESS_THRESHOLD) {
+      if(enc.packed.length < enc.size) enc.packed = new byte[enc.body.length];
+      Deflater deflater = enc.deflater;
+      
+      deflater.reset();
+      deflater.setInput(enc.body, 0, enc.size);
+      deflater.finish();
+      int packedlength = deflater.deflate(enc.packed, 0, enc.size);
+      
+      //only use the compressed data if it actually fit in less space.
+      if(deflater.finished() && packedlength < enc.size) {
+        enc.data = enc.packed;
+        enc.length = packedlength;
+        flags |= FLAG_DEFLATE;
+      }
+    }
+    
+    byte[] header = enc.header;
+    System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+    header[MAGIC.length] = (byte) flags;
+    
+    Coordinate loc = reg.getLocation();
+    ByteUtils.toBytes(loc.x, LOCATION_OFFSET, header);
+    ByteUtils.toBytes(loc.y, LOCATION_OFFSET + 4, header);
+    ByteUtils.toBytes(loc.z, LOCATION_OFFSET + 8, header);
+    
+    int pos = putVarInt(enc.length, header, HEADER_LENGTH);
+    if((flags & FLAG_DEFLATE) != 0) pos = putVarInt(enc.size, header, pos);
+    enc.headerlength = pos;
+    
+    return enc;
+  }
+  
+  private static boolean hasHeader(byte[] data) {
+    for(int i = 0; i < MAGIC.length - 1; i++)
+      if(data[i] != MAGIC[i]) return false;
+    
+    return true;
+  }
+  
+  private static byte[] inflate(byte[] data, int offset, int packedlength, int length) throws IOException {
+    byte[] result = new byte[length];
+    Inflater inflater = INFLATER.get();
+    
+    inflater.reset();
+    inflater.setInput(data, offset, packedlength);
+    
+    try {
+      int read = inflater.inflate(result);
+      
+      if(read != length || !inflater.finished())
+        throw new IOException("Compressed region body has the wrong length.");
+    } catch (DataFormatException ex) {
+      throw new IOException(ex);
+    }
+    
+    return result;
+  }
+  
+  private static void encodePalette(Region reg, Encoder out) {
+    int size = reg.getPaletteSize();
+    out.writeVarInt(size);
+    
+    //air is 0 so that every id is positive.
+    for(int i = 0; i < size; i++) {
+      TileEntry ent = reg.getPaletteEntry(i);
+      out.writeVarInt(ent == null ? 0 : ent.getID() + 1);
+    }
+  }
+  
+  private static TileEntry[] decodePalette(Region reg, BodyReader in) throws IOException {
+    int size = in.readVarInt();
+    if(size <= 0 || size > Region.REGION_VOLUME)
+      throw new IOException("Invalid palette size " + size);
+    
+    TileEntry[] result = new TileEntry[size];
+    for(int i = 0; i < size; i++)
+      result[i] = reg.getEntry(in.readVarInt() - 1);
+    
+    return result;
+  }
+  
+  private static void encodeTiles(Region reg, Encoder out) {
+    //uniform regions are a single run.
+    if(reg.isUniform()) {
+      out.writeVarInt(0);
+      out.writeVarInt(Region.REGION_VOLUME);
+      return;
+    }
+    
+    //tiles are visited in index order, the same order as the first format.
+    int current = reg.getPaletteIndex(0);
+    int cnt = 1;
+    
+    for(int i = 1; i < Region.REGION_VOLUME; i++) {
+      int index = reg.getPaletteIndex(i);
+      
+      if(index == current) {
+        cnt++;
+        continue;
+      }
+      
+      out.writeVarInt(current);
+      out.writeVarInt(cnt);
+      
+      current = index;
+      cnt = 1;
+    }
+    
+    out.writeVarInt(current);
+    out.writeVarInt(cnt);
+  }
+  
+  private static void decodeTiles(Region reg, BodyReader in, TileEntry[] palette) throws IOException {
+    int cnt = 0;
+    
+    while(cnt < Region.REGION_VOLUME) {
+      int index = in.readVarInt();
+      int amt = in.readVarInt();
+      
+      if(index < 0 || index >= palette.length)
+        throw new IOException("Invalid palette index " + index);
+      if(amt <= 0 || cnt + amt > Region.REGION_VOLUME)
+        throw new IOException("Invalid tile run length " + amt);
+      
+      //the first run fills the whole region so uniform regions never need to
+      //allocate any tile data.
+      if(cnt == 0) {
+        reg.fill(palette[index]);
+      } else {
+        for(int i = cnt; i < cnt + amt; i++)
+          reg.setTileType(i, palette[index]);
+      }
+      
+      cnt += amt;
+    }
+  }
+  
+  private static void encodeDamage(Region reg, Encoder out) {
+    //only the damaged tiles need to be visited, runs are written as the gap
+    //since the end of the previous run, the length and the value.
+    int[] damaged = reg.getDamagedIndices();
+    out.writeVarInt(countDamageRuns(reg, damaged));
+    
+    int cnt = 0;
+    for(int i = 0; i < damaged.length; i++) {
+      int index = damaged[i];
+      long damage = reg.getDamage(index);
+      int end = getDamageRunEnd(reg, damaged, i);
+      
+      out.writeVarInt(index - cnt);
+      out.writeVarInt(end - i + 1);
+      out.writeVarLong((damage << 1) ^ (damage >> 63));
+      
+      cnt = damaged[end] + 1;
+      i = end;
+    }
+  }
+  
+  private static int countDamageRuns(Region reg, int[] damaged) {
+    int count = 0;
+    
+    for(int i = 0; i < damaged.length; i = getDamageRunEnd(reg, damaged, i) + 1)
+      count++;
+    
+    return count;
+  }
+  
+  private static int getDamageRunEnd(Region reg, int[] damaged, int start) {
+    //collect any following tiles with the same damage.
+    long damage = reg.getDamage(damaged[start]);
+    int end = start;
+    
+    while(end + 1 < damaged.length &&
+      damaged[end + 1] == damaged[end] + 1 &&
+      reg.getDamage(damaged[end + 1]) == damage)
+      end++;
+    
+    return end;
+  }
+  
+  private static void decodeDamage(Region reg, BodyReader in) throws IOException {
+    int count = in.readVarInt();
+    int cnt = 0;
+    
+    for(int run = 0; run < count; run++) {
+      int start = cnt + in.readVarInt();
+      int amt = in.readVarInt();
+      long zigzag = in.readVarLong();
+      long damage = (zigzag >>> 1) ^ -(zigzag & 1);
+      
+      if(start < cnt || amt <= 0 || start + amt > Region.REGION_VOLUME)
+        throw new IOException("Invalid damage run length " + amt);
+      
+      for(int i = start; i < start + amt; i++)
+        reg.setDamage(i, damage);
+      
+      cnt = start + amt;
+    }
+  }
+  
+  private static Region readVersion1(InputStream in, World world, byte[] idata) throws IOException {
+    Coordinate loc = new Coordinate();
     
-    //read the coordinate in form the stream.
-    in.read(idata, 0, 12);
     loc.x = ByteUtils.toInteger(idata, 0);
     loc.y = ByteUtils.toInteger(idata, 4);
     loc.z = ByteUtils.toInteger(idata, 8);
     
-    decodeTiles(null, in, idata);
-    world.addRegion(out);
+    Region out = new Region(loc, world);
+    decodeTilesVersion1(out, in, idata);
+    decodeDamageVersion1(out, in, idata);
+    
     return out;
   }
   
-  private static void encodeTiles(Region reg, OutputStream out, byte[] temp) throws IOException {
-    TileEntry current = null;
-    short cnt = 0;
-    
-    for(int k = 0; k < Region.REGION_SIZE; k++) {
-      for(int i = 0; i < Region.REGION_SIZE; i++) {
-        for(int j = 0; j < Region.REGION_SIZE; j++) {
-          if(reg.getTile(i, j, k).type == current) {
-            cnt++;
-            continue;
-          }
-          
-          if(cnt == 0) continue;
-          
-          //write the tile id then the amount and continue on.
-          //air tiles will be encoded as -1.
-          if(current == null)
-            out.write(ByteUtils.toBytes(-1, 0, temp), 0, 4);
-          else
-            out.write(ByteUtils.toBytes(current.getID(), 0, temp), 0, 4);
-          out.write(ByteUtils.toBytes(cnt, 0, temp), 0, 2);
-          
-          cnt = 0;
-        }
+  private static void decodeTilesVersion1(Region reg, InputStream in, byte[] temp) throws IOException {
+    int cnt = 0;
+    
+    while(cnt < Region.REGION_VOLUME) {
+      readFully(in, temp, 0, 6);
+      TileEntry type = reg.getEntry(ByteUtils.toInteger(temp, 0));
+      short amt = ByteUtils.toShort(temp, 4);
+      
+      if(amt <= 0 || cnt + amt > Region.REGION_VOLUME)
+        throw new IOException("Invalid tile run length " + amt);
+      
+      if(cnt == 0) {
+        reg.fill(type);
+      } else {
+        for(int i = cnt; i < cnt + amt; i++)
+          reg.setTileType(i, type);
       }
+      
+      cnt += amt;
     }
-    
-    //write the tile id then the amount and continue on.
-    if(current == null)
-      out.write(ByteUtils.toBytes(0, 0, temp), 0, 4);
-    else
-      out.write(ByteUtils.toBytes(current.getID(), 0, temp), 0, 4);
-    out.write(ByteUtils.toBytes(cnt, 0, temp), 0, 2);
   }
   
-  private static void decodeTiles(Region reg, InputStream in, byte[] temp) throws IOException {
-    int type = 0;
-    short amt = 0;
+  private static void decodeDamageVersion1(Region reg, InputStream in, byte[] temp) throws IOException {
     int cnt = 0;
     
-    while(cnt < Region.REGION_SIZE * Region.REGION_SIZE * Region.REGION_SIZE) {
-      //get the coordinate for the count
-      int k = (cnt / (Region.REGION_SIZE * Region.REGION_SIZE)) % Region.REGION_SIZE;
-      int i = (cnt / Region.REGION_SIZE) % Region.REGION_SIZE;
-      int j = (cnt) % Region.REGION_SIZE;
+    while(cnt < Region.REGION_VOLUME) {
+      readFully(in, temp, 0, 12);
+      long damage = ByteUtils.toLong(temp, 0);
+      int amt = ByteUtils.toInteger(temp, 8);
       
-      if(amt == 0) {
-        in.read(temp, 0, 6);
-        type = ByteUtils.toInteger(temp);
-        amt = ByteUtils.toShort(temp, 4);
+      if(amt <= 0 || cnt + amt > Region.REGION_VOLUME)
+        throw new IOException("Invalid damage run length " + amt);
+      
+      if(damage != 0) {
+        for(int i = cnt; i < cnt + amt; i++)
+          reg.setDamage(i, damage);
       }
       
-      reg.setTile(i, j, k, type);
-      amt--;
+      cnt += amt;
     }
   }
   
-  private static void encodeDamage(Region reg, OutputStream out, byte[] temp) throws IOException {
-    long current = 0;
-    int cnt = 0;
+  private static int putVarInt(int value, byte[] out, int pos) {
+    while((value & ~0x7F) != 0) {
+      out[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    
+    out[pos++] = (byte) value;
+    return pos;
+  }
+  
+  private static int readVarInt(InputStream in) throws IOException {
+    int result = 0;
+    
+    for(int shift = 0; shift < Integer.SIZE; shift += 7) {
+      int b = in.read();
+      if(b < 0) throw new EOFException();
+      
+      result |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) return result;
+    }
+    
+    throw new IOException("Malformed variable length integer.");
+  }
+  
+  private static int readVarInt(ByteBuffer in) throws IOException {
+    int result = 0;
+    
+    for(int shift = 0; shift < Integer.SIZE; shift += 7) {
+      if(!in.hasRemaining()) throw new EOFException();
+      
+      int b = in.get();
+      result |= (b & 0x7F) << shift;
+      if((b & 0x80) == 0) return result;
+    }
+    
+    throw new IOException("Malformed variable length integer.");
+  }
+  
+  private static void readFully(InputStream in, byte[] buf, int off, int len) throws IOException {
+    int end = off + len;
     
-    for(int k = 0; k < Region.REGION_SIZE; k++) {
-      for(int i = 0; i < Region.REGION_SIZE; i++) {
-        for(int j = 0; j < Region.REGION_SIZE; j++) {
-          if(reg.getTile(i, j, k).damage == current) {
-            cnt++;
-            continue;
-          }
-          
-          if(cnt == 0) continue;
-          
-          //write the tile id then the amount and continue on.
-          out.write(ByteUtils.toBytes(current, 0, temp), 0, 8);
-          out.write(ByteUtils.toBytes(cnt, 0, temp), 0, 4);
-          
-          cnt = 0;
-        }
+    while(off < end) {
+      int read = in.read(buf, off, end - off);
+      if(read < 0) throw new EOFException();
+      
+      off += read;
+    }
+  }
+  
+  //reads variable length values directly from the body without any stream overhead.
+  private static final class BodyReader {
+  
+    public BodyReader(byte[] data, int start, int end) {
+      this.data = data;
+      this.pos = start;
+      this.end = end;
+    }
+    
+    public int readVarInt() throws IOException {
+      return (int) readVarLong();
+    }
+    
+    public long readVarLong() throws IOException {
+      long result = 0;
+      
+      for(int shift = 0; shift < Long.SIZE; shift += 7) {
+        if(pos >= end) throw new EOFException();
+        
+        int b = data[pos++];
+        result |= (long) (b & 0x7F) << shift;
+        if((b & 0x80) == 0) return result;
       }
+      
+      throw new IOException("Malformed variable length integer.");
     }
     
-    //write the tile id then the amount and continue on.
-    out.write(ByteUtils.toBytes(current, 0, temp), 0, 8);
-    out.write(ByteUtils.toBytes(cnt, 0, temp), 0, 4);
+    private final byte[] data;
+    private final int end;
+    private int pos;
   }
   
+  //buffers for encoding a region, kept by each thread so that encoding does
+  //not need to allocate or copy anything.
+  private static final class Encoder {
+    
+    public final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    public final byte[] header = new byte[HEADER_LENGTH + 2 * MAX_VARINT];
+    public byte[] body = new byte[INITIAL_BUFFER];
+    public byte[] packed = new byte[INITIAL_BUFFER];
+    public int size;
+    public int headerlength;
+    //the final body, either the body or packed buffer.
+    public byte[] data;
+    public int length;
+    
+    public void reset() {
+      //do not hold on to buffers from unusually large regions.
+      if(body.length > MAX_RETAINED) {
+        body = new byte[INITIAL_BUFFER];
+        packed = new byte[INITIAL_BUFFER];
+      }
+      
+      size = 0;
+    }
+    
+    public void writeVarInt(int value) {
+      ensureCapacity(MAX_VARINT);
+      size = putVarInt(value, body, size);
+    }
+    
+    public void writeVarLong(long value) {
+      ensureCapacity(MAX_VARLONG);
+      
+      while((value & ~0x7FL) != 0) {
+        body[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      
+      body[size++] = (byte) value;
+    }
+    
+    private void ensureCapacity(int amount) {
+      if(size + amount > body.length)
+        body = Arrays.copyOf(body, Math.max(body.length * 2, size + amount));
+    }
+  }
+  
+  private static final byte VERSION = 2;
+  //the first byte of the magic can never start the first format.
+  private static final byte[] MAGIC = {'R', 'G', 'N', VERSION};
+  private static final int FLAG_DEFLATE = 1;
+  private static final int LOCATION_OFFSET = MAGIC.length + 1;
+  private static final int HEADER_LENGTH = LOCATION_OFFSET + 12;
+  private static final int COMPRESS_THRESHOLD = 64;
+  private static final int MAX_BODY = 1 << 24;
+  private static final int INITIAL_BUFFER = 4096;
+  private static final int MAX_RETAINED = 1 << 18;
+  private static final int MAX_VARINT = 5;
+  private static final int MAX_VARLONG = 10;
+  
+  //compressors are expensive to create so each thread keeps one.
+  private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial(Encoder::new);
+  private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+  
   private static final String locprefix = RegionEncoder.class.getName().toLowerCase();
 
   private static final Logger log = Logger.getLogger(locprefix,
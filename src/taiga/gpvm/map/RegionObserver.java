@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import taiga.code.math.ReadableVector3;
+
+/**
+ * Something with a position in a {@link World} that needs the {@link Region}s
+ * around it to be loaded, such as a camera or player.
+ * 
+ * @author russell
+ * @see StreamingRegionManager
+ */
+public interface RegionObserver {
+  /**
+   * Returns the current position of this {@link RegionObserver} in the {@link World}.
+   * 
+   * @return The position of the {@link RegionObserver}.
+   */
+  public ReadableVector3 getPosition();
+}
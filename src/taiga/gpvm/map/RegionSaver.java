@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import taiga.code.registration.NamedObject;
+import taiga.code.registration.NamedSystem;
+import taiga.gpvm.HardcodedValues;
+import taiga.gpvm.util.geom.Coordinate;
+
+/**
+ * Saves modified {@link Region}s to the {@link RegionStore} of their {@link World}
+ * in the background.  {@link Region}s changed through a {@link WorldMutator}
+ * are collected periodically as {@link Region#snapshot()}s, which are then
+ * encoded and written in batches by a number of I/O threads.  A {@link Region} that changes many times between saves is
+ * only written once.  Modified {@link Region}s are also saved when they are
+ * unloaded, and everything is written when this system is stopped after
+ * which the {@link RegionStore}s that were written to are closed.
+ * 
+ * Each {@link Region} is always written by the same thread so newer versions
+ * can never be overwritten by older ones.  Snapshots stay queued until they
+ * have been written, and a {@link World} loading a {@link Region} checks them
+ * before its {@link RegionStore}, so a {@link Region} that is unloaded and
+ * loaded again before it is saved keeps its changes.
+ * 
+ * @author russell
+ */
+public class RegionSaver extends NamedSystem implements UniverseListener {
+
+  /**
+   * Creates a new {@link RegionSaver} using the default settings.
+   */
+  public RegionSaver() {
+    this(DEFAULT_BATCH_SIZE, DEFAULT_INTERVAL, DEFAULT_THREADS);
+  }
+  
+  /**
+   * Creates a new {@link RegionSaver}.
+   * 
+   * @param batchsize The maximum number of {@link Region}s written before the
+   * {@link RegionStore} is flushed to the disk.
+   * @param interval The time between saves in milliseconds.
+   * @param threads The number of threads used to write {@link Region}s.
+   */
+  public RegionSaver(int batchsize, long interval, int threads) {
+    super(HardcodedValues.NAME_REGION_SAVER);
+    
+    this.batchsize = Math.max(1, batchsize);
+    this.interval = Math.max(1, interval);
+    this.threads = Math.max(1, threads);
+    
+    worlds = new CopyOnWriteArrayList<>();
+    pending = new ConcurrentHashMap<>();
+    stores = ConcurrentHashMap.newKeySet();
+  }
+  
+  /**
+   * Adds a {@link World} whose {@link Region}s should be saved.  {@link World}s
+   * created in a {@link Universe} this is listening to are added automatically.
+   * 
+   * @param world The {@link World} to save.
+   */
+  public void addWorld(World world) {
+    if(worlds.contains(world)) return;
+    
+    worlds.add(world);
+    world.setRegionSaver(this);
+  }
+  
+  /**
+   * Takes a snapshot of all modified {@link Region}s and queues them to be
+   * written.  This does not wait for the writes to finish.
+   */
+  public void save() {
+    captureModified();
+    
+    ExecutorService[] exes = writers;
+    if(exes != null) submitPending(exes);
+  }
+  
+  /**
+   * Takes a snapshot of all modified {@link Region}s on the calling thread and
+   * writes them along with any other queued {@link Region}s.  The returned
+   * {@link CompletableFuture} completes once all of them have been written and
+   * flushed to the disk, or completes exceptionally if any of them could not be.
+   * 
+   * @return A {@link CompletableFuture} for the completion of the writes.
+   */
+  public CompletableFuture<Void> saveAll() {
+    captureModified();
+    
+    ExecutorService[] exes = writers;
+    if(exes == null) {
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      result.completeExceptionally(new IllegalStateException(getFullName() + " is not running."));
+      return result;
+    }
+    
+    List<CompletableFuture<Boolean>> writes = submitPending(exes);
+    
+    //writes already in progress have to finish as well.
+    for(ExecutorService exe : exes)
+      writes.add(CompletableFuture.supplyAsync(() -> true, exe));
+    
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]))
+      .thenRun(() -> {
+        for(CompletableFuture<Boolean> write : writes)
+          if(!write.join())
+            throw new CompletionException(new IOException("Not all regions could be saved."));
+      });
+  }
+  
+  @Override
+  public void worldCreated(World world) {
+    addWorld(world);
+  }
+  
+  @Override
+  protected synchronized void startSystem() {
+    if(timer != null) return;
+    
+    writers = new ExecutorService[threads];
+    for(int i = 0; i < threads; i++) {
+      String tname = getFullName() + "-" + i;
+      writers[i] = Executors.newSingleThreadExecutor((r) -> new Thread(r, tname));
+    }
+    
+    timer = new Timer(getFullName());
+    timer.scheduleAtFixedRate(new TimerTask() {
+      @Override
+      public void run() {
+        save();
+      }
+    }, interval, interval);
+  }
+  
+  @Override
+  protected synchronized void stopSystem() {
+    if(timer == null) return;
+    
+    timer.cancel();
+    timer = null;
+    
+    //write out everything that is left before stopping the writers.
+    save();
+    
+    for(ExecutorService writer : writers)
+      writer.shutdown();
+    
+    try {
+      for(ExecutorService writer : writers)
+        if(!writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS))
+          log.log(Level.SEVERE, SHUTDOWN_TIMED_OUT, getFullName());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    
+    writers = null;
+    
+    //release the files of every store that was written to.
+    for(RegionStore store : stores)
+      store.close();
+    stores.clear();
+  }
+  
+  @Override
+  protected void resetObject() {
+    stopSystem();
+    
+    for(World world : worlds)
+      world.setRegionSaver(null);
+    worlds.clear();
+    pending.clear();
+  }
+  
+  private final int batchsize;
+  private final long interval;
+  private final int threads;
+  private final Collection<World> worlds;
+  //snapshots waiting to be written, only the newest version is kept.
+  private final Map<SaveKey, Region> pending;
+  //stores that have been written to and have to be closed when stopping.
+  private final Set<RegionStore> stores;
+  private Timer timer;
+  private volatile ExecutorService[] writers;
+  
+  /**
+   * Queues the unsaved changes of a {@link Region} that is being unloaded.
+   * This is called by the {@link World} before the {@link Region} is removed
+   * so that the changes are found if it is loaded again before they have been
+   * written.
+   * 
+   * @param reg The {@link Region} being unloaded.
+   */
+  void saveUnloaded(Region reg) {
+    capture(reg);
+  }
+  
+  /**
+   * Returns the newest snapshot of the {@link Region} at the given location
+   * that has not been written to the {@link RegionStore} yet.
+   * 
+   * @param world The {@link World} of the {@link Region}.
+   * @param coor The location of the {@link Region}.
+   * @return The unsaved snapshot or null if there is not one.
+   */
+  Region getUnsaved(World world, Coordinate coor) {
+    return pending.get(new SaveKey(world, RegionTable.getKey(coor)));
+  }
+  
+  private void capture(Region reg) {
+    Region snapshot;
+    
+    //the version has to match the snapshot.
+    synchronized(reg) {
+      if(!reg.isModified()) return;
+      
+      snapshot = reg.snapshot();
+      reg.markSaved(snapshot.getVersion());
+    }
+    
+    SaveKey key = new SaveKey(reg.getWorld(), RegionTable.getKey(snapshot.getLocation()));
+    pending.put(key, snapshot);
+  }
+  
+  private void captureModified() {
+    List<Region> regs = new ArrayList<>();
+    
+    for(World world : worlds) {
+      world.drainModified(regs);
+      
+      for(Region reg : regs)
+        capture(reg);
+      
+      regs.clear();
+    }
+  }
+  
+  private List<CompletableFuture<Boolean>> submitPending(ExecutorService[] exes) {
+    List<CompletableFuture<Boolean>> result = new ArrayList<>();
+    if(pending.isEmpty()) return result;
+    
+    List<List<SaveKey>> groups = new ArrayList<>(exes.length);
+    for(int i = 0; i < exes.length; i++)
+      groups.add(new ArrayList<>());
+    
+    for(SaveKey key : pending.keySet())
+      groups.get((key.hashCode() & Integer.MAX_VALUE) % exes.length).add(key);
+    
+    for(int i = 0; i < exes.length; i++) {
+      List<SaveKey> group = groups.get(i);
+      
+      for(int start = 0; start < group.size(); start += batchsize) {
+        List<SaveKey> batch = group.subList(start, Math.min(group.size(), start + batchsize));
+        result.add(CompletableFuture.supplyAsync(() -> writeBatch(batch), exes[i]));
+      }
+    }
+    
+    return result;
+  }
+  
+  private boolean writeBatch(List<SaveKey> batch) {
+    Set<RegionStore> written = new HashSet<>();
+    boolean success = true;
+    
+    for(SaveKey key : batch) {
+      //it may have already been written by an earlier batch.
+      Region save = pending.get(key);
+      if(save == null) continue;
+      
+      World world = save.getWorld();
+      RegionStore store = getStore(world);
+      if(store == null) {
+        log.log(Level.WARNING, NO_STORE, world.getFullName());
+        success = false;
+        continue;
+      }
+      
+      try {
+        store.saveRegion(save);
+        written.add(store);
+        stores.add(store);
+        
+        //loads see the snapshot until the store has it, unless there is already a newer version.
+        pending.remove(key, save);
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, SAVE_FAILED, new Object[]{world.getFullName(), save.getLocation()});
+        log.log(Level.SEVERE, null, ex);
+        
+        //it stays queued and is tried again later.
+        success = false;
+      }
+    }
+    
+    for(RegionStore store : written) {
+      try {
+        store.flush();
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, null, ex);
+        success = false;
+      }
+    }
+    
+    return success;
+  }
+  
+  private static RegionStore getStore(World world) {
+    NamedObject obj = world.getObject(HardcodedValues.NAME_REGION_STORE);
+    
+    if(obj instanceof RegionStore) return (RegionStore) obj;
+    return null;
+  }
+  
+  private static class SaveKey {
+  
+    public SaveKey(World world, long region) {
+      this.world = world;
+      this.region = region;
+    }
+    
+    public final World world;
+    public final long region;
+    
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(world) * 31 + Long.hashCode(region);
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+      if(!(obj instanceof SaveKey)) return false;
+      
+      SaveKey other = (SaveKey) obj;
+      return world == other.world && region == other.region;
+    }
+  }
+  
+  private static final int DEFAULT_BATCH_SIZE = 32;
+  private static final long DEFAULT_INTERVAL = 5000;
+  private static final int DEFAULT_THREADS = 1;
+  private static final long SHUTDOWN_TIMEOUT = 30;
+  
+  private static final String locprefix = RegionSaver.class.getName().toLowerCase();
+  
+  private static final String NO_STORE = locprefix + ".no_store";
+  private static final String SAVE_FAILED = locprefix + ".save_failed";
+  private static final String SHUTDOWN_TIMED_OUT = locprefix + ".shutdown_timed_out";
+  
+  private static final Logger log = Logger.getLogger(locprefix, 
+    System.getProperty("taiga.code.logging.text"));
+}
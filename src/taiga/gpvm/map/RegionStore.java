@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import taiga.code.registration.NamedObject;
+import taiga.gpvm.HardcodedValues;
+import taiga.gpvm.util.geom.Coordinate;
+
+/**
+ * Persistent storage for the {@link Region}s of {@link World}s.  Each
+ * {@link World} is given its own directory and the {@link Region}s are grouped
+ * into {@link RegionArchive} files that each cover a cube of
+ * {@link RegionArchive#AREA_SIZE} {@link Region}s on a side.
+ * 
+ * The directories are named after the hex encoded names of the {@link World}s.
+ * 
+ * A {@link World} will use the {@link RegionStore} it can find with the name
+ * {@link HardcodedValues#NAME_REGION_STORE} to load {@link Region}s before
+ * trying to generate them.
+ * 
+ * @author russell
+ */
+public class RegionStore extends NamedObject {
+
+  /**
+   * Creates a new {@link RegionStore} that keeps its files in the given
+   * directory.
+   * 
+   * @param dir The directory for the {@link RegionArchive} files.
+   */
+  public RegionStore(File dir) {
+    super(HardcodedValues.NAME_REGION_STORE);
+    
+    this.dir = dir;
+    archives = new HashMap<>();
+  }
+  
+  /**
+   * Loads the {@link Region} containing the given {@link Coordinate} if it has
+   * been stored.  The {@link Region} is not added to the {@link World}.
+   * 
+   * @param coor A {@link Coordinate} within the {@link Region}.
+   * @param world The {@link World} that the {@link Region} belongs to.
+   * @return The loaded {@link Region} or null if it has not been stored.
+   * @throws IOException If there was an error reading the {@link Region}.
+   */
+  public Region loadRegion(Coordinate coor, World world) throws IOException {
+    RegionArchive archive = getArchive(world, coor, false);
+    if(archive == null) return null;
+    
+    return archive.read(getEntryIndex(coor), world);
+  }
+  
+  /**
+   * Writes the given {@link Region} to its {@link RegionArchive} replacing any
+   * previously stored version.  The data is not guaranteed to be on the disk
+   * until {@link #flush()} is called.
+   * 
+   * @param reg The {@link Region} to store.
+   * @throws IOException If there was an error writing the {@link Region}.
+   */
+  public void saveRegion(Region reg) throws IOException {
+    ExposedOutputStream out = new ExposedOutputStream();
+    RegionEncoder.encode(reg, out);
+    
+    saveRegion(reg.getWorld(), reg.getLocation(), out.getBuffer(), out.size());
+  }
+  
+  /**
+   * Writes an already encoded {@link Region} to its {@link RegionArchive}
+   * replacing any previously stored version.
+   * 
+   * @param world The {@link World} that the {@link Region} belongs to.
+   * @param coor The location of the {@link Region}.
+   * @param encoded The {@link Region} encoded by the {@link RegionEncoder}.
+   * @param length The number of bytes of encoded data.
+   * @throws IOException If there was an error writing the {@link Region}.
+   */
+  public void saveRegion(World world, Coordinate coor, byte[] encoded, int length) throws IOException {
+    getArchive(world, coor, true).write(getEntryIndex(coor), encoded, length);
+  }
+  
+  /**
+   * Forces all stored {@link Region}s to the disk.
+   * 
+   * @throws IOException If there was an error writing the data.
+   */
+  public void flush() throws IOException {
+    synchronized(archives) {
+      for(RegionArchive archive : archives.values())
+        archive.flush();
+    }
+  }
+  
+  /**
+   * Flushes and closes all of the open {@link RegionArchive} files.  They will
+   * be opened again if they are needed.
+   */
+  public void close() {
+    synchronized(archives) {
+      for(RegionArchive archive : archives.values()) {
+        try {
+          archive.close();
+        } catch (IOException ex) {
+          log.log(Level.WARNING, CLOSE_FAILED, archive.getFile());
+          log.log(Level.WARNING, null, ex);
+        }
+      }
+      
+      archives.clear();
+    }
+  }
+  
+  private final File dir;
+  private final Map<String, RegionArchive> archives;
+  
+  private RegionArchive getArchive(World world, Coordinate coor, boolean create) throws IOException {
+    int ax = getRegionIndex(coor.x) >> AREA_SHIFT;
+    int ay = getRegionIndex(coor.y) >> AREA_SHIFT;
+    int az = getRegionIndex(coor.z) >> AREA_SHIFT;
+    
+    File wdir = new File(dir, getFolderName(world));
+    File file = new File(wdir, "r." + ax + "." + ay + "." + az + FILE_EXTENSION);
+    String key = file.getPath();
+    
+    synchronized(archives) {
+      RegionArchive result = archives.get(key);
+      if(result != null) return result;
+      
+      if(!file.exists()) {
+        if(!create) return null;
+        
+        if(!wdir.isDirectory() && !wdir.mkdirs())
+          throw new IOException("Could not create directory " + wdir);
+      }
+      
+      result = new RegionArchive(file);
+      archives.put(key, result);
+      
+      log.log(Level.FINE, ARCHIVE_OPENED, file);
+      return result;
+    }
+  }
+  
+  /**
+   * Returns the name of the directory used for the files of the given
+   * {@link World}.  The name of the {@link World} is hex encoded so that
+   * names containing separators or parent references cannot point outside
+   * of the directory they are stored in.
+   * 
+   * @param world The {@link World} to get the directory name for.
+   * @return The name of the directory for the {@link World}.
+   */
+  static String getFolderName(World world) {
+    StringBuilder result = new StringBuilder();
+    
+    for(byte b : world.name.getBytes(StandardCharsets.UTF_8)) {
+      result.append(Character.forDigit((b >> 4) & 0xF, 16));
+      result.append(Character.forDigit(b & 0xF, 16));
+    }
+    
+    return result.toString();
+  }
+  
+  private static int getEntryIndex(Coordinate coor) {
+    return RegionArchive.getEntryIndex(
+      getRegionIndex(coor.x),
+      getRegionIndex(coor.y),
+      getRegionIndex(coor.z));
+  }
+  
+  private static int getRegionIndex(int coor) {
+    return coor >> REGION_SHIFT;
+  }
+  
+  //avoids copying the encoded region before it is written.
+  private static class ExposedOutputStream extends ByteArrayOutputStream {
+  
+    public ExposedOutputStream() {
+      super(INITIAL_BUFFER);
+    }
+    
+    public byte[] getBuffer() {
+      return buf;
+    }
+  }
+  
+  private static final String FILE_EXTENSION = ".rga";
+  private static final int INITIAL_BUFFER = 8192;
+  private static final int REGION_SHIFT = Integer.numberOfTrailingZeros(Region.REGION_SIZE);
+  private static final int AREA_SHIFT = Integer.numberOfTrailingZeros(RegionArchive.AREA_SIZE);
+  
+  private static final String locprefix = RegionStore.class.getName().toLowerCase();
+  
+  private static final String ARCHIVE_OPENED = locprefix + ".archive_opened";
+  private static final String CLOSE_FAILED = locprefix + ".close_failed";
+  
+  private static final Logger log = Logger.getLogger(locprefix, 
+    System.getProperty("taiga.code.logging.text"));
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import taiga.gpvm.util.geom.Coordinate;
+
+/**
+ * An index of {@link Region}s using the packed location of the {@link Region}
+ * as a key.  The keys are kept in a primitive array with open addressing so
+ * lookups do not need to create any {@link Coordinate}s or boxed values.
+ * 
+ * This class is not synchronized, however {@link #get(long)} will never fail
+ * or loop forever while a write is in progress.  It can therefore be used
+ * with optimistic reads as long as the result is validated afterwards.
+ * 
+ * @author russell
+ */
+final class RegionTable {
+
+  /**
+   * Creates a new empty {@link RegionTable}.
+   */
+  public RegionTable() {
+    table = new Table(MIN_CAPACITY);
+  }
+  
+  /**
+   * Returns the key for the {@link Region} that contains the given location.
+   * Each axis of the {@link Region} index is packed into 21 bits.
+   * 
+   * @param x The x coordinate of a {@link Tile} in the {@link Region}.
+   * @param y The y coordinate of a {@link Tile} in the {@link Region}.
+   * @param z The z coordinate of a {@link Tile} in the {@link Region}.
+   * @return The key for the {@link Region}.
+   */
+  public static long getKey(int x, int y, int z) {
+    long rx = (x >> REGION_SHIFT) & AXIS_MASK;
+    long ry = (y >> REGION_SHIFT) & AXIS_MASK;
+    long rz = (z >> REGION_SHIFT) & AXIS_MASK;
+    
+    return (rx << (2 * AXIS_BITS)) | (ry << AXIS_BITS) | rz;
+  }
+  
+  /**
+   * Returns the key for the {@link Region} that contains the given {@link Coordinate}.
+   * 
+   * @param coor A {@link Coordinate} in the {@link Region}.
+   * @return The key for the {@link Region}.
+   */
+  public static long getKey(Coordinate coor) {
+    return getKey(coor.x, coor.y, coor.z);
+  }
+  
+  /**
+   * Returns the {@link Region} with the given key or null if there is not one.
+   * 
+   * @param key The key of the {@link Region}.
+   * @return The {@link Region} or null.
+   */
+  public Region get(long key) {
+    Table t = table;
+    
+    return t.values[t.find(key)];
+  }
+  
+  /**
+   * Adds a {@link Region} to this {@link RegionTable} replacing any {@link Region}
+   * already at its location.
+   * 
+   * @param reg The {@link Region} to add.
+   * @return The {@link Region} that was replaced or null.
+   */
+  public Region put(Region reg) {
+    long key = getKey(reg.getLocation());
+    Table t = table;
+    int slot = t.find(key);
+    Region old = t.values[slot];
+    
+    //the key must be in place before the value makes the slot visible.
+    t.keys[slot] = key;
+    t.values[slot] = reg;
+    
+    if(old == null) {
+      size++;
+      
+      if(size * 2 > t.keys.length)
+        rehash(t.keys.length * 2);
+    }
+    
+    return old;
+  }
+  
+  /**
+   * Removes the {@link Region} with the given key.
+   * 
+   * @param key The key of the {@link Region} to remove.
+   * @return The removed {@link Region} or null if there was not one.
+   */
+  public Region remove(long key) {
+    Table t = table;
+    int slot = t.find(key);
+    Region old = t.values[slot];
+    if(old == null) return null;
+    
+    int mask = t.keys.length - 1;
+    
+    //shift back any entries that would no longer be reachable.
+    int next = (slot + 1) & mask;
+    while(t.values[next] != null) {
+      int home = hash(t.keys[next]) & mask;
+      
+      if(((next - home) & mask) >= ((next - slot) & mask)) {
+        t.keys[slot] = t.keys[next];
+        t.values[slot] = t.values[next];
+        slot = next;
+      }
+      
+      next = (next + 1) & mask;
+    }
+    
+    t.values[slot] = null;
+    size--;
+    
+    return old;
+  }
+  
+  /**
+   * Returns the number of {@link Region}s in this {@link RegionTable}.
+   * 
+   * @return The number of {@link Region}s.
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Removes all of the {@link Region}s.
+   */
+  public void clear() {
+    table = new Table(MIN_CAPACITY);
+    size = 0;
+  }
+  
+  /**
+   * Returns a view of the {@link Region}s in this {@link RegionTable}.
+   * 
+   * @return A {@link Collection} of the {@link Region}s.
+   */
+  public Collection<Region> values() {
+    return new AbstractCollection<Region>() {
+    
+      @Override
+      public Iterator<Region> iterator() {
+        return new RegionIterator(table.values);
+      }
+      
+      @Override
+      public int size() {
+        return size;
+      }
+    };
+  }
+  
+  //replaced as a whole when resizing so that readers always see matching arrays.
+  private volatile Table table;
+  private int size;
+  
+  private void rehash(int capacity) {
+    Table old = table;
+    Table next = new Table(capacity);
+    
+    for(int i = 0; i < old.values.length; i++) {
+      if(old.values[i] == null) continue;
+      
+      int slot = next.find(old.keys[i]);
+      next.keys[slot] = old.keys[i];
+      next.values[slot] = old.values[i];
+    }
+    
+    table = next;
+  }
+  
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+  
+  private static final class Table {
+    
+    public Table(int capacity) {
+      keys = new long[capacity];
+      values = new Region[capacity];
+    }
+    
+    public final long[] keys;
+    public final Region[] values;
+    
+    public int find(long key) {
+      int mask = keys.length - 1;
+      int slot = hash(key) & mask;
+      
+      //the table is never more than half full so this always terminates.
+      while(values[slot] != null && keys[slot] != key)
+        slot = (slot + 1) & mask;
+      
+      return slot;
+    }
+  }
+  
+  private static class RegionIterator implements Iterator<Region> {
+  
+    public RegionIterator(Region[] values) {
+      this.values = values;
+      advance();
+    }
+    
+    @Override
+    public boolean hasNext() {
+      return next < values.length;
+    }
+    
+    @Override
+    public Region next() {
+      if(!hasNext()) throw new NoSuchElementException();
+      
+      Region result = values[next++];
+      advance();
+      
+      return result;
+    }
+    
+    private final Region[] values;
+    private int next;
+    
+    private void advance() {
+      while(next < values.length && values[next] == null) next++;
+    }
+  }
+  
+  private static final int REGION_SHIFT = Integer.numberOfTrailingZeros(Region.REGION_SIZE);
+  private static final int AXIS_BITS = 21;
+  private static final long AXIS_MASK = (1L << AXIS_BITS) - 1;
+  private static final int MIN_CAPACITY = 16;
+}
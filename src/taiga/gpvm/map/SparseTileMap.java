@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.util.Arrays;
+
+/**
+ * A map from the index of a {@link Tile} in a {@link Region} to a long value.
+ * Only non-zero values are stored, so this is intended for data that most
+ * {@link Tile}s do not have such as damage.  Keys and values are kept in
+ * primitive arrays using open addressing, so no objects are created per entry.
+ * The arrays are only allocated once the first non-zero value is stored.
+ * 
+ * The arrays can be shared with a snapshot, in which case they are copied
+ * before the next change.
+ * 
+ * @author russell
+ */
+final class SparseTileMap {
+
+  /**
+   * Creates a new empty {@link SparseTileMap}.
+   */
+  public SparseTileMap() {
+  }
+  
+  private SparseTileMap(SparseTileMap source) {
+    keys = source.keys;
+    values = source.values;
+    size = source.size;
+    
+    shared = true;
+    source.shared = true;
+  }
+  
+  /**
+   * Returns the value for the given index, or 0 if there is no value.
+   * 
+   * @param index The index of the {@link Tile}.
+   * @return The value for the {@link Tile}.
+   */
+  public long get(int index) {
+    if(keys == null) return 0;
+    
+    int slot = find(index);
+    
+    if(keys[slot] == EMPTY) return 0;
+    return values[slot];
+  }
+  
+  /**
+   * Sets the value for the given index.  Setting a value of 0 removes the
+   * entry for the index.
+   * 
+   * @param index The index of the {@link Tile}.
+   * @param value The new value.
+   * @return The previous value for the index.
+   */
+  public long put(int index, long value) {
+    assert index != EMPTY;
+    
+    if(keys == null) {
+      if(value == 0) return 0;
+      allocate();
+    }
+    
+    int slot = find(index);
+    
+    if(keys[slot] == EMPTY) {
+      if(value == 0) return 0;
+      
+      unshare();
+      keys[slot] = index;
+      values[slot] = value;
+      size++;
+      
+      if(size * 4 > keys.length * 3)
+        rehash(keys.length * 2);
+      
+      return 0;
+    }
+    
+    long old = values[slot];
+    if(old == value) return old;
+    
+    unshare();
+    if(value == 0) remove(slot);
+    else values[slot] = value;
+    
+    return old;
+  }
+  
+  /**
+   * Returns the number of indices with a non-zero value.
+   * 
+   * @return The number of entries.
+   */
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Checks whether there are any non-zero values.
+   * 
+   * @return Whether this {@link SparseTileMap} is empty.
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+  
+  /**
+   * Returns all of the indices with non-zero values in ascending order.
+   * 
+   * @return A new array of the indices.
+   */
+  public int[] getSortedIndices() {
+    int[] result = new int[size];
+    if(keys == null) return result;
+    
+    int cnt = 0;
+    for(int key : keys)
+      if(key != EMPTY)
+        result[cnt++] = key;
+    
+    Arrays.sort(result);
+    return result;
+  }
+  
+  /**
+   * Returns an estimate of the number of bytes used by this {@link SparseTileMap}.
+   * 
+   * @return The approximate memory usage in bytes.
+   */
+  public long getMemoryUsage() {
+    if(keys == null) return OBJECT_OVERHEAD;
+    
+    return OBJECT_OVERHEAD + (long) keys.length * (Integer.BYTES + Long.BYTES);
+  }
+  
+  /**
+   * Removes all entries.
+   */
+  public void clear() {
+    //small arrays that are not shared are kept for the next damaged tile.
+    if(keys == null || shared || keys.length != MIN_CAPACITY) {
+      keys = null;
+      values = null;
+    } else {
+      Arrays.fill(keys, EMPTY);
+    }
+    
+    size = 0;
+    shared = false;
+  }
+  
+  /**
+   * Creates a read only copy of the current contents of this {@link SparseTileMap}.
+   * The entries are shared between them until either one is changed.  This
+   * must not be called while another thread is changing this {@link SparseTileMap}.
+   * 
+   * @return A new {@link SparseTileMap} with the same entries.
+   */
+  public SparseTileMap snapshot() {
+    return new SparseTileMap(this);
+  }
+  
+  //null until the first entry is added.
+  private int[] keys;
+  private long[] values;
+  private int size;
+  //whether the arrays are also used by a snapshot.
+  private boolean shared;
+  
+  private void allocate() {
+    keys = new int[MIN_CAPACITY];
+    values = new long[MIN_CAPACITY];
+    Arrays.fill(keys, EMPTY);
+    shared = false;
+  }
+  
+  private void unshare() {
+    if(!shared) return;
+    
+    keys = keys.clone();
+    values = values.clone();
+    shared = false;
+  }
+  
+  private int find(int index) {
+    int mask = keys.length - 1;
+    int slot = hash(index) & mask;
+    
+    while(keys[slot] != EMPTY && keys[slot] != index)
+      slot = (slot + 1) & mask;
+    
+    return slot;
+  }
+  
+  private void remove(int slot) {
+    int mask = keys.length - 1;
+    
+    //shift back any entries that would no longer be reachable.
+    int next = (slot + 1) & mask;
+    while(keys[next] != EMPTY) {
+      int home = hash(keys[next]) & mask;
+      
+      //move the entry if its home is not between the hole and its position.
+      if(((next - home) & mask) >= ((next - slot) & mask)) {
+        keys[slot] = keys[next];
+        values[slot] = values[next];
+        slot = next;
+      }
+      
+      next = (next + 1) & mask;
+    }
+    
+    keys[slot] = EMPTY;
+    size--;
+  }
+  
+  private void rehash(int capacity) {
+    int[] oldkeys = keys;
+    long[] oldvalues = values;
+    
+    keys = new int[capacity];
+    values = new long[capacity];
+    Arrays.fill(keys, EMPTY);
+    
+    for(int i = 0; i < oldkeys.length; i++) {
+      if(oldkeys[i] == EMPTY) continue;
+      
+      int slot = find(oldkeys[i]);
+      keys[slot] = oldkeys[i];
+      values[slot] = oldvalues[i];
+    }
+  }
+  
+  private static int hash(int index) {
+    int h = index * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+  
+  private static final int EMPTY = -1;
+  private static final int MIN_CAPACITY = 8;
+  //rough size of the object and array headers used for memory estimates.
+  private static final int OBJECT_OVERHEAD = 48;
+}
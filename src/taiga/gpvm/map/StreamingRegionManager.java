@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import taiga.code.math.ReadableVector3;
+import taiga.code.util.Updateable;
+import taiga.gpvm.util.geom.Coordinate;
+
+/**
+ * A {@link RegionManager} that keeps the {@link Region}s around a set of
+ * {@link RegionObserver}s loaded.  Each update the {@link Region}s within the
+ * view radius of an observer are requested nearest first, and {@link Region}s
+ * that are no longer needed are unloaded farthest first.  {@link Region}s will
+ * also be unloaded whenever there are more than the maximum number of
+ * {@link Region}s, or they use more than the maximum amount of memory.
+ * While there are no observers nothing is loaded or unloaded.
+ * 
+ * This class does nothing until it is updated, it should be added to something
+ * that updates it periodically such as the {@link taiga.gpvm.schedule.WorldUpdater}.
+ * 
+ * @author russell
+ */
+public class StreamingRegionManager extends RegionManager implements Updateable {
+
+  /**
+   * Creates a new {@link StreamingRegionManager}.
+   * 
+   * @param radius The distance around each {@link RegionObserver} to load in
+   * {@link Region}s.
+   * @param maxregions The maximum number of {@link Region}s to keep loaded, or
+   * 0 for no limit.
+   * @param maxbytes The maximum estimated memory for loaded {@link Region}s, or
+   * 0 for no limit.
+   */
+  public StreamingRegionManager(int radius, int maxregions, long maxbytes) {
+    this.radius = radius;
+    this.maxregions = maxregions <= 0 ? Integer.MAX_VALUE : maxregions;
+    this.maxbytes = maxbytes <= 0 ? Long.MAX_VALUE : maxbytes;
+    
+    maxpending = DEFAULT_MAX_PENDING;
+    observers = new CopyOnWriteArrayList<>();
+    loading = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  }
+  
+  /**
+   * Adds a {@link RegionObserver} whose surroundings should be loaded.
+   * 
+   * @param obs The {@link RegionObserver} to add.
+   */
+  public void addObserver(RegionObserver obs) {
+    observers.add(obs);
+  }
+  
+  /**
+   * Removes a {@link RegionObserver}.  The {@link Region}s around it will
+   * be unloaded on a later update if no other {@link RegionObserver} needs them.
+   * 
+   * @param obs The {@link RegionObserver} to remove.
+   */
+  public void removeObserver(RegionObserver obs) {
+    observers.remove(obs);
+  }
+  
+  /**
+   * Sets the maximum number of {@link Region}s that can be loading at once.
+   * Keeping this small makes sure the nearest {@link Region}s are loaded
+   * first when the {@link RegionObserver}s move.
+   * 
+   * @param max The maximum number of pending loads.
+   */
+  public void setMaxPendingLoads(int max) {
+    maxpending = Math.max(1, max);
+  }
+  
+  @Override
+  public void update() {
+    World map = getParentMap();
+    if(map == null) return;
+    
+    List<int[]> centers = getObserverRegions();
+    
+    unloadRegions(map, centers);
+    loadRegions(map, centers);
+  }
+  
+  @Override
+  protected void mapAttached(World map) {
+    update();
+  }
+  
+  private final int radius;
+  private final int maxregions;
+  private final long maxbytes;
+  private volatile int maxpending;
+  private final Collection<RegionObserver> observers;
+  //keys of the regions that have been requested but not loaded yet.
+  private final Set<Long> loading;
+  //estimated memory of the loaded regions as of the last update.
+  private long usedbytes;
+  
+  private List<int[]> getObserverRegions() {
+    List<int[]> result = new ArrayList<>(observers.size());
+    
+    for(RegionObserver obs : observers) {
+      ReadableVector3 pos = obs.getPosition();
+      
+      result.add(new int[] {
+        getRegionIndex((int) Math.floor(pos.getX())),
+        getRegionIndex((int) Math.floor(pos.getY())),
+        getRegionIndex((int) Math.floor(pos.getZ()))});
+    }
+    
+    return result;
+  }
+  
+  private void unloadRegions(World map, List<int[]> centers) {
+    Collection<Region> loaded = map.getRegions();
+    List<Candidate> regs = new ArrayList<>(loaded.size());
+    long bytes = 0;
+    
+    for(Region reg : loaded) {
+      Coordinate loc = reg.getLocation();
+      long mem = reg.getMemoryUsage();
+      
+      regs.add(new Candidate(loc, getDistance(centers,
+        getRegionIndex(loc.x), getRegionIndex(loc.y), getRegionIndex(loc.z)), mem));
+      bytes += mem;
+    }
+    
+    //without any observers there is nothing to measure distance from.
+    if(centers.isEmpty()) {
+      usedbytes = bytes;
+      return;
+    }
+    
+    //farthest first
+    Collections.sort(regs, Collections.reverseOrder());
+    
+    int count = regs.size();
+    //an extra region of slack keeps regions on the edge from being reloaded constantly.
+    long keep = (long) (radius + 1) * (radius + 1);
+    
+    for(Candidate cand : regs) {
+      if(cand.distance <= keep && count <= maxregions && bytes <= maxbytes) break;
+      
+      if(map.unloadRegion(cand.location)) {
+        count--;
+        bytes -= cand.memory;
+      }
+    }
+    
+    usedbytes = bytes;
+  }
+  
+  private void loadRegions(World map, List<int[]> centers) {
+    if(centers.isEmpty() || usedbytes >= maxbytes) return;
+    
+    List<Candidate> wanted = getWantedRegions(map, centers);
+    Collections.sort(wanted);
+    
+    for(Candidate cand : wanted) {
+      //loads finish while this runs, a region is only removed from loading
+      //after it is added so reading loading first never undercounts.
+      int pending = loading.size();
+      if(pending >= maxpending || pending + map.getRegionCount() >= maxregions) break;
+      
+      Long key = RegionTable.getKey(cand.location);
+      if(!loading.add(key)) continue;
+      
+      map.loadRegionAsync(cand.location).whenComplete((reg, ex) -> loading.remove(key));
+    }
+  }
+  
+  private List<Candidate> getWantedRegions(World map, List<int[]> centers) {
+    Set<Long> seen = new HashSet<>();
+    List<Candidate> result = new ArrayList<>();
+    long limit = (long) radius * radius;
+    
+    for(int[] center : centers) {
+      for(int i = -radius; i <= radius; i++) {
+        for(int j = -radius; j <= radius; j++) {
+          for(int k = -radius; k <= radius; k++) {
+            if(i * i + j * j + k * k > limit) continue;
+            
+            int x = (center[0] + i) * Region.REGION_SIZE;
+            int y = (center[1] + j) * Region.REGION_SIZE;
+            int z = (center[2] + k) * Region.REGION_SIZE;
+            
+            if(map.getRegion(x, y, z) != null) continue;
+            if(!seen.add(RegionTable.getKey(x, y, z))) continue;
+            
+            result.add(new Candidate(new Coordinate(x, y, z), getDistance(centers,
+              center[0] + i, center[1] + j, center[2] + k), 0));
+          }
+        }
+      }
+    }
+    
+    return result;
+  }
+  
+  private static long getDistance(List<int[]> centers, int x, int y, int z) {
+    long result = Long.MAX_VALUE;
+    
+    for(int[] center : centers) {
+      long dx = x - center[0];
+      long dy = y - center[1];
+      long dz = z - center[2];
+      
+      result = Math.min(result, dx * dx + dy * dy + dz * dz);
+    }
+    
+    return result;
+  }
+  
+  private static int getRegionIndex(int coor) {
+    return coor >> REGION_SHIFT;
+  }
+  
+  private static class Candidate implements Comparable<Candidate> {
+  
+    public Candidate(Coordinate location, long distance, long memory) {
+      this.location = location;
+      this.distance = distance;
+      this.memory = memory;
+    }
+    
+    public final Coordinate location;
+    //squared distance in regions to the nearest observer.
+    public final long distance;
+    public final long memory;
+    
+    @Override
+    public int compareTo(Candidate o) {
+      return Long.compare(distance, o.distance);
+    }
+  }
+  
+  private static final int REGION_SHIFT = Integer.numberOfTrailingZeros(Region.REGION_SIZE);
+  private static final int DEFAULT_MAX_PENDING = 16;
+}
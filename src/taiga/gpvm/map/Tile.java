@@ -26,20 +26,60 @@ import taiga.gpvm.registry.TileEntry;
  * that corresponds to a list of available tiles, along with an optional set of 
  * data fields.  A damage value is also stored in each tile.
  * 
+ * {@link Tile}s do not hold any data themselves, they are a view of a single
+ * location in the {@link Region} that created them.  Changes made to the
+ * {@link Region} will be visible through the {@link Tile}.
+ * 
  * @author russell
  */
 public final class Tile {
   
   /**
-   * The {@link TileEntry} that defines the type of this tile.
+   * Returns the {@link TileEntry} that defines the type of this tile.
+   * 
+   * @return The {@link TileEntry} for this {@link Tile} or null for air.
    */
-  public TileEntry type;
+  public TileEntry getType() {
+    return region.getTileType(index);
+  }
+  
   /**
-   * The amount of damage that the block has taken.
+   * Returns the amount of damage that the block has taken.
+   * 
+   * @return The damage value for this {@link Tile}.
    */
-  public long damage;
+  public long getDamage() {
+    return region.getDamage(index);
+  }
+  
   /**
-   * Any data associated with this {@link Tile} or null if there is not any data.
+   * Returns the {@link Region} that contains this {@link Tile}.
+   * 
+   * @return The parent {@link Region}.
    */
-  //private Map<Integer, Object> data;
+  public Region getRegion() {
+    return region;
+  }
+  
+  /**
+   * Creates a view of the {@link Tile} at the given index of a {@link Region}.
+   * 
+   * @param region The {@link Region} that contains the {@link Tile}.
+   * @param index The index of the {@link Tile} in the {@link Region}.
+   */
+  Tile(Region region, int index) {
+    this.region = region;
+    this.index = index;
+  }
+  
+  void setType(TileEntry type) {
+    region.setTileType(index, type);
+  }
+  
+  void setDamage(long damage) {
+    region.setDamage(index, damage);
+  }
+  
+  private final Region region;
+  private final int index;
 }
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import taiga.gpvm.registry.TileEntry;
+import taiga.gpvm.util.geom.Direction;
+
+/**
+ * A movable position in a {@link World} for code that visits many nearby
+ * {@link Tile}s such as meshing, lighting or path finding.  The {@link Region}
+ * under the cursor and its six adjacent {@link Region}s are cached, so moving
+ * around and looking at neighboring {@link Tile}s does not require looking up
+ * {@link Region}s or creating any objects.
+ * 
+ * The cached {@link Region}s are not updated when {@link Region}s are loaded
+ * or unloaded, {@link #refresh()} should be called if that may have happened.
+ * A {@link TileCursor} should only be used by a single thread.
+ * 
+ * @author russell
+ */
+public final class TileCursor {
+
+  /**
+   * Creates a new {@link TileCursor} for the given {@link World} located at
+   * the origin.
+   * 
+   * @param world The {@link World} that the {@link TileCursor} will move through.
+   */
+  public TileCursor(World world) {
+    this.world = world;
+    
+    neighbors = new Region[6];
+    moveTo(0, 0, 0);
+  }
+  
+  /**
+   * Moves this {@link TileCursor} to the given location in the {@link World}.
+   * 
+   * @param x The x coordinate of the new location.
+   * @param y The y coordinate of the new location.
+   * @param z The z coordinate of the new location.
+   * @return A reference to this {@link TileCursor}.
+   */
+  public TileCursor moveTo(int x, int y, int z) {
+    int rx = x & ~LOCAL_MASK;
+    int ry = y & ~LOCAL_MASK;
+    int rz = z & ~LOCAL_MASK;
+    
+    this.x = x;
+    this.y = y;
+    this.z = z;
+    
+    if(!positioned || rx != originx || ry != originy || rz != originz) {
+      //see if this is one of the cached regions.
+      int dir = getAdjacentDirection(rx - originx, ry - originy, rz - originz);
+      
+      originx = rx;
+      originy = ry;
+      originz = rz;
+      
+      if(positioned && dir >= 0) shift(dir);
+      else refresh();
+    }
+    
+    index = Region.getIndex(x & LOCAL_MASK, y & LOCAL_MASK, z & LOCAL_MASK);
+    
+    return this;
+  }
+  
+  /**
+   * Moves this {@link TileCursor} one {@link Tile} in the given {@link Direction}.
+   * 
+   * @param dir The {@link Direction} to move in.
+   * @return A reference to this {@link TileCursor}.
+   */
+  public TileCursor move(Direction dir) {
+    int i = dir.getIndex();
+    
+    return moveTo(x + OFFSET_X[i], y + OFFSET_Y[i], z + OFFSET_Z[i]);
+  }
+  
+  /**
+   * Discards the cached {@link Region}s so that they will be looked up again.
+   * This should be called if a {@link Region} near the cursor may have been
+   * loaded or unloaded.
+   */
+  public void refresh() {
+    center = world.getRegion(originx, originy, originz);
+    resolved = 0;
+    positioned = true;
+  }
+  
+  /**
+   * Returns the x coordinate of this {@link TileCursor}.
+   * 
+   * @return The x coordinate.
+   */
+  public int getX() {
+    return x;
+  }
+  
+  /**
+   * Returns the y coordinate of this {@link TileCursor}.
+   * 
+   * @return The y coordinate.
+   */
+  public int getY() {
+    return y;
+  }
+  
+  /**
+   * Returns the z coordinate of this {@link TileCursor}.
+   * 
+   * @return The z coordinate.
+   */
+  public int getZ() {
+    return z;
+  }
+  
+  /**
+   * Returns the {@link Region} that this {@link TileCursor} is in.
+   * 
+   * @return The current {@link Region} or null if it is not loaded.
+   */
+  public Region getRegion() {
+    return center;
+  }
+  
+  /**
+   * Checks whether the {@link Tile} under this {@link TileCursor} is loaded.
+   * 
+   * @return Whether the current {@link Region} is loaded.
+   */
+  public boolean isLoaded() {
+    return center != null;
+  }
+  
+  /**
+   * Returns the {@link TileEntry} of the {@link Tile} under this {@link TileCursor}.
+   * 
+   * @return The {@link TileEntry} or null for air or {@link Tile}s that are not
+   * loaded.
+   */
+  public TileEntry getType() {
+    if(center == null) return null;
+    
+    return center.getTileType(index);
+  }
+  
+  /**
+   * Returns the damage of the {@link Tile} under this {@link TileCursor}.
+   * 
+   * @return The damage value or 0 if the {@link Tile} is not loaded.
+   */
+  public long getDamage() {
+    if(center == null) return 0;
+    
+    return center.getDamage(index);
+  }
+  
+  /**
+   * Returns a {@link Tile} view of the location under this {@link TileCursor}.
+   * The {@link Tile} will not move along with the {@link TileCursor}.
+   * 
+   * @return The {@link Tile} or null if it is not loaded.
+   */
+  public Tile getTile() {
+    if(center == null) return null;
+    
+    return new Tile(center, index);
+  }
+  
+  /**
+   * Returns the {@link TileEntry} of the adjacent {@link Tile} in the given
+   * {@link Direction}.
+   * 
+   * @param dir The {@link Direction} of the neighbor.
+   * @return The {@link TileEntry} or null for air or {@link Tile}s that are not
+   * loaded.
+   */
+  public TileEntry getNeighborType(Direction dir) {
+    int i = dir.getIndex();
+    Region reg = getNeighborRegion(i);
+    
+    if(reg == null) return null;
+    
+    return reg.getTileType(getNeighborIndex(i));
+  }
+  
+  /**
+   * Returns a {@link Tile} view of the adjacent {@link Tile} in the given
+   * {@link Direction}.
+   * 
+   * @param dir The {@link Direction} of the neighbor.
+   * @return The neighboring {@link Tile} or null if it is not loaded.
+   */
+  public Tile getNeighbor(Direction dir) {
+    int i = dir.getIndex();
+    Region reg = getNeighborRegion(i);
+    
+    if(reg == null) return null;
+    
+    return new Tile(reg, getNeighborIndex(i));
+  }
+  
+  private final World world;
+  private int x;
+  private int y;
+  private int z;
+  private int index;
+  private boolean positioned;
+  
+  //origin of the current region
+  private int originx;
+  private int originy;
+  private int originz;
+  
+  private Region center;
+  private final Region[] neighbors;
+  //bit set of the neighbors that have been looked up.
+  private int resolved;
+  
+  private Region getNeighborRegion(int dir) {
+    int lx = (x & LOCAL_MASK) + OFFSET_X[dir];
+    int ly = (y & LOCAL_MASK) + OFFSET_Y[dir];
+    int lz = (z & LOCAL_MASK) + OFFSET_Z[dir];
+    
+    //most neighbors are in the same region.
+    if(((lx | ly | lz) & ~LOCAL_MASK) == 0) return center;
+    
+    return getAdjacentRegion(dir);
+  }
+  
+  private int getNeighborIndex(int dir) {
+    return Region.getIndex(
+      (x + OFFSET_X[dir]) & LOCAL_MASK,
+      (y + OFFSET_Y[dir]) & LOCAL_MASK,
+      (z + OFFSET_Z[dir]) & LOCAL_MASK);
+  }
+  
+  private Region getAdjacentRegion(int dir) {
+    if((resolved & (1 << dir)) == 0) {
+      neighbors[dir] = world.getRegion(
+        originx + OFFSET_X[dir] * Region.REGION_SIZE,
+        originy + OFFSET_Y[dir] * Region.REGION_SIZE,
+        originz + OFFSET_Z[dir] * Region.REGION_SIZE);
+      resolved |= 1 << dir;
+    }
+    
+    return neighbors[dir];
+  }
+  
+  private void shift(int dir) {
+    //the adjacent region is still relative to the old origin.
+    Region next;
+    if((resolved & (1 << dir)) != 0) {
+      next = neighbors[dir];
+    } else {
+      next = world.getRegion(originx, originy, originz);
+    }
+    
+    int back = dir ^ 1;
+    neighbors[back] = center;
+    resolved = 1 << back;
+    center = next;
+  }
+  
+  private static int getAdjacentDirection(int dx, int dy, int dz) {
+    for(int i = 0; i < 6; i++) {
+      if(dx == OFFSET_X[i] * Region.REGION_SIZE &&
+        dy == OFFSET_Y[i] * Region.REGION_SIZE &&
+        dz == OFFSET_Z[i] * Region.REGION_SIZE)
+        return i;
+    }
+    
+    return -1;
+  }
+  
+  private static final int LOCAL_MASK = Region.REGION_SIZE - 1;
+  
+  //offsets for each direction index, these match World#getNeighborTiles.
+  private static final int[] OFFSET_X = {1, -1, 0, 0, 0, 0};
+  private static final int[] OFFSET_Y = {0, 0, 1, -1, 0, 0};
+  private static final int[] OFFSET_Z = {0, 0, 0, 0, 1, -1};
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.map;
+
+import java.util.Arrays;
+import taiga.gpvm.registry.TileEntry;
+
+/**
+ * Stores the {@link TileEntry}s for a fixed number of {@link Tile}s.  Rather
+ * than a reference per {@link Tile} this keeps a palette of the {@link TileEntry}s
+ * that are actually used and packs the index into the palette for each {@link Tile}
+ * into an array of longs.  The number of bits used for each index will grow
+ * as the palette does.
+ * 
+ * While every {@link Tile} has the same {@link TileEntry} no index data is
+ * allocated at all, the indices are only created once a different
+ * {@link TileEntry} is set.
+ * 
+ * The indices are split into pages of {@link #PAGE_SIZE} {@link Tile}s so that
+ * {@link #snapshot()} can share them.  A page that is shared with a snapshot
+ * is copied the first time it is changed, so a snapshot only costs as much
+ * memory as the pages that change while it is in use.
+ * 
+ * @author russell
+ */
+final class TileStorage {
+
+  /**
+   * Creates a new {@link TileStorage} for the given number of {@link Tile}s.
+   * All of the {@link Tile}s will initially be air.
+   * 
+   * @param size The number of {@link Tile}s to store.
+   */
+  public TileStorage(int size) {
+    this(size, null);
+  }
+  
+  /**
+   * Creates a new {@link TileStorage} for the given number of {@link Tile}s
+   * with every {@link Tile} set to the given {@link TileEntry}.
+   * 
+   * @param size The number of {@link Tile}s to store.
+   * @param fill The {@link TileEntry} for all of the {@link Tile}s or null for air.
+   */
+  public TileStorage(int size, TileEntry fill) {
+    this.size = size;
+    pagecount = (size + PAGE_SIZE - 1) / PAGE_SIZE;
+    assert pagecount <= Long.SIZE;
+    
+    palette = new TileEntry[2];
+    fill(fill);
+  }
+  
+  private TileStorage(TileStorage source) {
+    size = source.size;
+    pagecount = source.pagecount;
+    
+    palette = source.palette.clone();
+    palettesize = source.palettesize;
+    bits = source.bits;
+    perword = source.perword;
+    mask = source.mask;
+    
+    if(source.pages != null) {
+      //the pages themselves are shared, only the table of them is copied.
+      pages = source.pages.clone();
+      shared = ALL_PAGES;
+      source.shared = ALL_PAGES;
+    }
+  }
+  
+  /**
+   * Returns the {@link TileEntry} stored at the given index.
+   * 
+   * @param index The index of the {@link Tile}.
+   * @return The {@link TileEntry} at that index, or null for air.
+   */
+  public TileEntry get(int index) {
+    //uniform storage
+    if(pages == null) return palette[0];
+    
+    return palette[getPaletteIndex(pages, index, bits, perword, mask)];
+  }
+  
+  /**
+   * Changes the {@link TileEntry} at the given index.  If the {@link TileEntry}
+   * is not already in the palette it will be added.
+   * 
+   * @param index The index of the {@link Tile}.
+   * @param type The new {@link TileEntry} or null for air.
+   */
+  public void set(int index, TileEntry type) {
+    if(pages == null) {
+      if(palette[0] == type) return;
+      
+      //all of the existing tiles use the first palette entry, which is
+      //index 0 in the newly allocated data.
+      resize(MIN_BITS);
+    }
+    
+    setPaletteIndex(index, getOrAddPaletteIndex(type));
+  }
+  
+  /**
+   * Sets every {@link Tile} to the given {@link TileEntry} and releases any
+   * index data.
+   * 
+   * @param type The {@link TileEntry} for all of the {@link Tile}s or null for air.
+   */
+  public void fill(TileEntry type) {
+    Arrays.fill(palette, null);
+    palette[0] = type;
+    palettesize = 1;
+    lastindex = 0;
+    
+    pages = null;
+    shared = 0;
+    bits = 0;
+    perword = 0;
+    mask = 0;
+  }
+  
+  /**
+   * Checks whether every {@link Tile} is known to have the same {@link TileEntry}.
+   * This may return false for storage that has been filled one {@link Tile}
+   * at a time.
+   * 
+   * @return Whether all of the {@link Tile}s share a single {@link TileEntry}.
+   */
+  public boolean isUniform() {
+    return pages == null;
+  }
+  
+  /**
+   * Returns the number of {@link TileEntry}s in the palette.
+   * 
+   * @return The size of the palette.
+   */
+  public int getPaletteSize() {
+    return palettesize;
+  }
+  
+  /**
+   * Returns the {@link TileEntry} at the given position in the palette.
+   * 
+   * @param index The position in the palette.
+   * @return The {@link TileEntry} or null for air.
+   */
+  public TileEntry getPaletteEntry(int index) {
+    return palette[index];
+  }
+  
+  /**
+   * Returns the position in the palette of the {@link TileEntry} for the
+   * {@link Tile} at the given index.
+   * 
+   * @param index The index of the {@link Tile}.
+   * @return The position of its {@link TileEntry} in the palette.
+   */
+  public int getPaletteIndex(int index) {
+    if(pages == null) return 0;
+    
+    return getPaletteIndex(pages, index, bits, perword, mask);
+  }
+  
+  /**
+   * Returns the number of bits currently used for each {@link Tile}.  This will
+   * be 0 while the storage is uniform.
+   * 
+   * @return The number of bits per {@link Tile}.
+   */
+  public int getBitsPerTile() {
+    return bits;
+  }
+  
+  /**
+   * Returns an estimate of the number of bytes used by this {@link TileStorage}.
+   * 
+   * @return The approximate memory usage in bytes.
+   */
+  public long getMemoryUsage() {
+    long result = OBJECT_OVERHEAD + (long) palette.length * REFERENCE_SIZE;
+    if(pages != null) result += getMemoryUsage(pages);
+    
+    return result;
+  }
+  
+  /**
+   * Creates a read only copy of the current contents of this {@link TileStorage}.
+   * The index data is shared between them until either one is changed.  This
+   * must not be called while another thread is changing this {@link TileStorage}.
+   * 
+   * @return A new {@link TileStorage} with the same {@link TileEntry}s.
+   */
+  public TileStorage snapshot() {
+    return new TileStorage(this);
+  }
+  
+  private final int size;
+  private final int pagecount;
+  private TileEntry[] palette;
+  private int palettesize;
+  private long[][] pages;
+  //a bit for each page that is also used by a snapshot.
+  private long shared;
+  private int bits;
+  private int perword;
+  private long mask;
+  //the palette index that was last looked up, generators tend to set long runs
+  //of the same type.
+  private int lastindex;
+  
+  private void setPaletteIndex(int index, int value) {
+    int page = index >>> PAGE_SHIFT;
+    long[] words = pages[page];
+    
+    if((shared & (1L << page)) != 0) {
+      words = words.clone();
+      pages[page] = words;
+      shared &= ~(1L << page);
+    }
+    
+    int local = index & PAGE_MASK;
+    int word = local / perword;
+    int shift = (local % perword) * bits;
+    
+    words[word] = (words[word] & ~(mask << shift)) | ((long) value << shift);
+  }
+  
+  private int getOrAddPaletteIndex(TileEntry type) {
+    if(palette[lastindex] == type) return lastindex;
+    
+    for(int i = 0; i < palettesize; i++) {
+      if(palette[i] == type) {
+        lastindex = i;
+        return i;
+      }
+    }
+    
+    //a new entry for the palette
+    if(palettesize == palette.length)
+      palette = Arrays.copyOf(palette, palettesize * 2);
+    
+    palette[palettesize] = type;
+    lastindex = palettesize;
+    palettesize++;
+    
+    //make sure the indices still fit
+    if(palettesize > (1 << bits)) {
+      int nbits = bits;
+      while(palettesize > (1 << nbits)) nbits *= 2;
+      
+      resize(nbits);
+    }
+    
+    return lastindex;
+  }
+  
+  private void resize(int nbits) {
+    assert nbits >= MIN_BITS;
+    
+    long[][] old = pages;
+    int oldbits = bits;
+    int oldperword = perword;
+    long oldmask = mask;
+    
+    bits = nbits;
+    perword = Long.SIZE / bits;
+    mask = (1L << bits) - 1;
+    int words = PAGE_SIZE / perword;
+    
+    //new pages are never shared.
+    shared = 0;
+    
+    pages = new long[pagecount][words];
+    
+    if(old == null) return;
+    
+    //copy over all of the old indices.
+    for(int i = 0; i < size; i++)
+      setPaletteIndex(i, getPaletteIndex(old, i, oldbits, oldperword, oldmask));
+  }
+  
+  private static int getPaletteIndex(long[][] pages, int index, int bits, int perword, long mask) {
+    int local = index & PAGE_MASK;
+    int shift = (local % perword) * bits;
+    
+    return (int) ((pages[index >>> PAGE_SHIFT][local / perword] >>> shift) & mask);
+  }
+  
+  private static long getMemoryUsage(long[][] pages) {
+    return (long) pages.length * (REFERENCE_SIZE + ARRAY_OVERHEAD + (long) pages[0].length * Long.BYTES);
+  }
+  
+  /**
+   * The number of {@link Tile}s in each page of index data.
+   */
+  public static final int PAGE_SIZE = 1024;
+  
+  private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE);
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  private static final long ALL_PAGES = -1L;
+  private static final int MIN_BITS = 1;
+  //rough sizes used for memory estimates.
+  private static final int OBJECT_OVERHEAD = 64;
+  private static final int REFERENCE_SIZE = 8;
+  private static final int ARRAY_OVERHEAD = 16;
+}
@@ -21,19 +21,29 @@ package taiga.gpvm.map;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import taiga.code.networking.NetworkManager;
+import taiga.code.networking.MessageReader;
+import taiga.code.networking.MessageWriter;
 import taiga.code.networking.NetworkedObject;
 import taiga.code.registration.NamedObject;
 import taiga.code.registration.ReusableObject;
-import taiga.code.util.ByteUtils;
 import taiga.gpvm.HardcodedValues;
 import taiga.gpvm.util.geom.Coordinate;
 
@@ -168,11 +178,67 @@ public final class Universe extends ReusableObject {
   /**
    * Provides network access for the game universe.  This class will handle requests
    * for world names as well as requests for region data.
+   * 
+   * Responses that are too large to send at once are split into fragments
+   * which are put back together by the client.  The client also limits how
+   * many {@link Region}s it has requested at once, further requests are queued
+   * until earlier ones are answered so that the server never has more than
+   * a few {@link Region}s waiting to be sent to a client.
+   * 
+   * Queued requests are sent together in a single list message, and the
+   * server packs the responses to a list into as few messages as it can.
+   * 
+   * Messages are built with a {@link MessageWriter} and read in place with a
+   * {@link MessageReader}, the location of a {@link Region} is sent as
+   * variable length integers so most requests only take a few bytes.
    */
   protected final class Comms extends NetworkedObject {
 
     public Comms() {
       super(HardcodedValues.NAME_COMMS);
+      
+      queued = new ArrayDeque<>();
+      partial = new HashMap<>();
+    }
+    
+    /**
+     * Sends a request for a {@link Region} to the server, or queues it if
+     * too many requests are already waiting for a response.
+     * 
+     * @param world The {@link World} the {@link Region} is in.
+     * @param coor The location of the {@link Region}.
+     * @param usecache Whether to include the hash of a cached copy.
+     * @throws IOException If the request could not be sent.
+     */
+    void requestRegion(World world, Coordinate coor, boolean usecache) throws IOException {
+      requestRegions(world, Collections.singletonList(coor), usecache);
+    }
+    
+    /**
+     * Sends requests for several {@link Region}s to the server.  As many of
+     * them as the window allows are sent in a single message and the rest are
+     * queued.  If there is a cached copy of a {@link Region} its hash is
+     * included so that the server can skip sending it again if it has not
+     * changed.
+     * 
+     * @param world The {@link World} the {@link Region}s are in.
+     * @param coors The locations of the {@link Region}s.
+     * @param usecache Whether to include the hashes of cached copies.
+     * @throws IOException If the requests could not be sent.
+     */
+    void requestRegions(World world, List<Coordinate> coors, boolean usecache) throws IOException {
+      RegionCache cache = usecache ? getObject(HardcodedValues.NAME_REGION_CACHE) : null;
+      List<RegionRequest> requests = new ArrayList<>(coors.size());
+      
+      for(Coordinate coor : coors)
+        requests.add(new RegionRequest(world.getWorldID(), coor,
+          cache == null ? null : cache.getHash(world, coor)));
+      
+      synchronized(queued) {
+        queued.addAll(requests);
+      }
+      
+      flushRequests();
     }
     
     @Override
@@ -180,6 +246,12 @@ public final class Universe extends ReusableObject {
       try {
         clearWorlds();
         
+        synchronized(queued) {
+          queued.clear();
+          inflight = 0;
+        }
+        partial.clear();
+        
         sendMessage(new byte[]{NAME_REQ});
       } catch (IOException ex) {
         throw new UnsupportedOperationException();
@@ -188,19 +260,50 @@ public final class Universe extends ReusableObject {
 
     @Override
     protected void messageRecieved(Object remote, byte[] pack) {
-      switch(pack[0]) {
-        case NAME_REQ:
-          receiveNameRequest(remote, pack);
-          break;
-        case NAME_RES:
-          receiveNameResponse(pack);
-          break;
-        case REG_REQ:
-          receiveRegionRequest(pack);
-          break;
-        case REG_RES:
-          receiveRegionResponse(pack);
-          break;
+      messageRecieved(remote, ByteBuffer.wrap(pack));
+    }
+
+    @Override
+    protected void messageRecieved(Object remote, ByteBuffer pack) {
+      MessageReader in = new MessageReader(pack);
+      
+      try {
+        byte type = in.readByte();
+        
+        switch(type) {
+          case NAME_REQ:
+            receiveNameRequest(remote);
+            break;
+          case NAME_RES:
+            receiveNameResponse(in);
+            break;
+          case REG_REQ:
+            receiveRegionRequest(remote, in);
+            break;
+          case REG_RES:
+            releaseRequest();
+            receiveRegionResponse(in);
+            break;
+          case REG_UNCHANGED:
+            releaseRequest();
+            receiveRegionUnchanged(in);
+            break;
+          case REG_MISSING:
+            releaseRequest();
+            receiveRegionMissing(in);
+            break;
+          case REG_FRAG:
+            receiveFragment(remote, in);
+            break;
+          case REG_LIST:
+            receiveRegionList(remote, in);
+            break;
+          case REG_BATCH:
+            receiveBatch(remote, in);
+            break;
+        }
+      } catch (IOException ex) {
+        log.log(Level.WARNING, BAD_PACKET, new Object[]{remote, ex.getMessage()});
       }
     }
 
@@ -208,32 +311,20 @@ public final class Universe extends ReusableObject {
     protected void managerAttached() {
     }
     
-    private void receiveNameRequest(Object remote, byte[] pack) {
-      for(World target : index.values()) {
-        byte[] nameb;
-        
-        nameb = target.name.getBytes(NetworkManager.NETWORK_CHARSET);
-      
-        //assemble the response packet.
-        byte[] data = new byte[nameb.length + 3];
-
-        data[0] = NAME_RES;
-        ByteUtils.toBytes(target.getWorldID(), 1, data);
-        System.arraycopy(nameb, 0, data, 3, nameb.length);
-        try {
-          sendMessage(data, remote);
-        } catch (IOException ex) {
-          throw new UnsupportedOperationException();
+    private void receiveNameRequest(Object remote) throws IOException {
+      try(MessageWriter out = new MessageWriter()) {
+        for(World target : index.values()) {
+          out.reset();
+          out.writeByte(NAME_RES).writeShort(target.getWorldID()).writeString(target.name);
+          
+          sendMessage(out, remote);
         }
       }
     }
     
-    private void receiveNameResponse(byte[] pack) {
-      //decode the incoming packet
-      String name;
-      short id = ByteUtils.toShort(pack, 1);
-      
-      name = new String(pack, 3, pack.length - 3, NetworkManager.NETWORK_CHARSET);
+    private void receiveNameResponse(MessageReader in) throws IOException {
+      short id = in.readShort();
+      String name = in.readString();
       
       World target = getObject(name);
       if(target == null) {
@@ -243,36 +334,365 @@ public final class Universe extends ReusableObject {
       setID(target, id);
     }
     
-    private void receiveRegionRequest(byte[] pack) {
-      Coordinate coor = new Coordinate();
+    private void receiveRegionRequest(Object remote, MessageReader in) throws IOException {
+      RegionRequest request = readRequest(in);
+      World world = getRequestWorld(remote, request);
+      
+      CompletableFuture<Region> load = world == null ? 
+        CompletableFuture.completedFuture(null) :
+        world.loadRegionAsync(request.coor);
+      
+      //loading may block so the response is sent once it is done instead of from the network thread.
+      load.whenComplete((reg, ex) -> {
+        try(MessageWriter out = new MessageWriter()) {
+          writeResponse(out, request, ex == null ? reg : null);
+          sendResponse(out, request, remote);
+        } catch (IOException e) {
+          log.log(Level.SEVERE, null, e);
+        }
+      });
+    }
+    
+    private void receiveRegionList(Object remote, MessageReader in) {
+      List<RegionRequest> requests = new ArrayList<>();
+      List<CompletableFuture<Region>> loads = new ArrayList<>();
+      
+      //a broken request still leaves the ones before it to be answered.
+      try {
+        while(in.hasRemaining())
+          requests.add(readRequest(in));
+      } catch (IOException ex) {
+        log.log(Level.WARNING, BAD_PACKET, new Object[]{remote, ex.getMessage()});
+      }
+      
+      for(RegionRequest request : requests) {
+        World world = getRequestWorld(remote, request);
+        
+        loads.add(world == null ? 
+          CompletableFuture.completedFuture(null) :
+          world.loadRegionAsync(request.coor));
+      }
+      
+      //the regions are loaded in parallel and answered once all are done.
+      CompletableFuture.allOf(loads.toArray(new CompletableFuture<?>[loads.size()]))
+        .whenComplete((v, ex) -> sendResponses(remote, requests, loads));
+    }
+    
+    private void sendResponses(Object remote, List<RegionRequest> requests, List<CompletableFuture<Region>> loads) {
+      try(MessageWriter batch = new MessageWriter(); MessageWriter response = new MessageWriter()) {
+        batch.writeByte(REG_BATCH);
+        
+        for(int i = 0; i < requests.size(); i++) {
+          Region reg;
+          try {
+            reg = loads.get(i).join();
+          } catch (CompletionException | CancellationException ex) {
+            reg = null;
+          }
+          
+          response.reset();
+          writeResponse(response, requests.get(i), reg);
+          
+          //responses too large to share a message are sent on their own.
+          if(response.size() + MAX_LENGTH_BYTES > FRAGMENT_SIZE) {
+            sendResponse(response, requests.get(i), remote);
+            continue;
+          }
+          
+          if(batch.size() + response.size() + MAX_LENGTH_BYTES > FRAGMENT_SIZE) {
+            sendMessage(batch, remote);
+            batch.reset();
+            batch.writeByte(REG_BATCH);
+          }
+          
+          batch.writeVarInt(response.size()).writeBytes(response);
+        }
+        
+        if(batch.size() > 1) sendMessage(batch, remote);
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, null, ex);
+      }
+    }
+    
+    private void receiveBatch(Object remote, MessageReader in) throws IOException {
+      //each message in the batch is handled as a view of the batch.
+      while(in.hasRemaining()) {
+        int len = in.readVarInt();
+        
+        messageRecieved(remote, in.readView(len));
+      }
+    }
+    
+    //writes the response to a request for the given region, which may be null.
+    private void writeResponse(MessageWriter out, RegionRequest request, Region reg) {
+      if(reg == null) {
+        //the client still needs an answer to free up its request.
+        out.writeByte(REG_MISSING);
+        writeLocation(out, request.world, request.coor);
+        
+        return;
+      }
+      
+      //the updater may be changing the region while it is sent.
+      Region snapshot = reg.snapshot();
+      long hash = snapshot.getContentHash();
+      
+      if(request.hash != null && request.hash == hash) {
+        //the client already has this version of the region.
+        out.writeByte(REG_UNCHANGED);
+        writeLocation(out, request.world, request.coor);
+        out.writeLong(hash);
+      } else {
+        //the region is encoded straight into the response after its header.
+        out.writeByte(REG_RES);
+        writeLocation(out, request.world, request.coor);
+        out.writeLong(hash);
+        RegionEncoder.encode(snapshot, out);
+      }
+    }
+    
+    private World getRequestWorld(Object remote, RegionRequest request) {
+      World world = index.get(request.world);
+      
+      if(world == null) log.log(Level.WARNING, BAD_PACKET, new Object[]{remote, request.world});
+      return world;
+    }
+    
+    private void sendResponse(MessageWriter response, RegionRequest request, Object remote) throws IOException {
+      if(response.size() <= FRAGMENT_SIZE) {
+        sendMessage(response, remote);
+        return;
+      }
+      
+      //each fragment has the location of the region, total length and offset.
+      try(MessageWriter frag = new MessageWriter()) {
+        for(int off = 0; off < response.size(); off += FRAGMENT_SIZE) {
+          int len = Math.min(FRAGMENT_SIZE, response.size() - off);
+          
+          frag.reset();
+          frag.writeByte(REG_FRAG);
+          writeLocation(frag, request.world, request.coor);
+          frag.writeVarInt(response.size()).writeVarInt(off).writeBytes(response, off, len);
+          
+          sendMessage(frag, remote);
+        }
+      }
+    }
+    
+    private void receiveFragment(Object remote, MessageReader in) throws IOException {
+      //the location and world id of the region identify the response.
+      int start = in.position();
+      readLocation(in);
       
-      coor.x = ByteUtils.toInteger(pack, 1);
-      coor.y = ByteUtils.toInteger(pack, 5);
-      coor.z = ByteUtils.toInteger(pack, 9);
-      short wid = ByteUtils.toShort(pack, 13);
+      ByteBuffer key = in.getBuffer().duplicate();
+      key.limit(in.position()).position(start);
+      key = ByteBuffer.allocate(key.remaining()).put(key);
+      key.flip();
       
-      Region reg = index.get(wid).getRegion(coor);
+      int total = in.readVarInt();
+      int off = in.readVarInt();
+      int len = in.remaining();
       
-      byte[] regdata = RegionEncoder.encode(reg);
-      byte[] data = new byte[regdata.length + 15];
+      byte[] data = partial.get(key);
+      if(data == null && off == 0 && total > FRAGMENT_SIZE && total <= MAX_RESPONSE) {
+        data = new byte[total];
+        partial.put(key, data);
+      }
+      
+      //fragments arrive in order so anything else is a broken response.
+      if(data == null || data.length != total || off < 0 || len > total - off) {
+        partial.remove(key);
+        throw new IOException("Unexpected fragment at " + off + " of " + total);
+      }
       
-      data[0] = REG_RES;
-      System.arraycopy(pack, 1, data, 1, 14);
-      System.arraycopy(regdata, 0, data, 15, regdata.length);
+      in.readBytes(data, off, len);
+      
+      if(off + len == total) {
+        partial.remove(key);
+        messageRecieved(remote, ByteBuffer.wrap(data));
+      }
+    }
+    
+    private void receiveRegionResponse(MessageReader in) throws IOException {
+      short wid = readWorldID(in);
+      Coordinate coor = readCoordinate(in);
+      long hash = in.readLong();
+      ByteBuffer data = in.readRemaining();
+      
+      World world = index.get(wid);
+      if(world == null) {
+        log.log(Level.WARNING, BAD_PACKET, new Object[]{wid, "unknown world"});
+        return;
+      }
+      
+      Region reg;
       try {
-        sendMessage(data);
+        reg = RegionEncoder.decode(data.duplicate(), world);
       } catch (IOException ex) {
-        throw new UnsupportedOperationException();
+        log.log(Level.WARNING, BAD_PACKET, new Object[]{world.getFullName(), ex.getMessage()});
+        
+        //the load fails so that whoever wanted the region can ask for it again.
+        world.regionFailed(coor, ex);
+        return;
+      }
+      
+      RegionCache cache = getObject(HardcodedValues.NAME_REGION_CACHE);
+      if(cache != null) cache.put(world, reg.getLocation(), hash, data);
+    }
+    
+    private void receiveRegionUnchanged(MessageReader in) throws IOException {
+      short wid = readWorldID(in);
+      Coordinate coor = readCoordinate(in);
+      long hash = in.readLong();
+      
+      World world = index.get(wid);
+      if(world == null) return;
+      
+      RegionCache cache = getObject(HardcodedValues.NAME_REGION_CACHE);
+      byte[] data = cache == null ? null : cache.get(world, coor, hash);
+      
+      try {
+        if(data != null) {
+          RegionEncoder.decode(ByteBuffer.wrap(data), world);
+          return;
+        }
+      } catch (IOException ex) {
+        cache.remove(world, coor);
+        log.log(Level.WARNING, BAD_PACKET, new Object[]{world.getFullName(), ex.getMessage()});
+      }
+      
+      //the cached copy is gone so the whole region is needed after all.
+      try {
+        world.sendRegionRequest(coor, false);
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, null, ex);
+      }
+    }
+    
+    private void receiveRegionMissing(MessageReader in) throws IOException {
+      short wid = readWorldID(in);
+      Coordinate coor = readCoordinate(in);
+      
+      World world = index.get(wid);
+      if(world == null) return;
+      
+      world.regionMissing(coor);
+    }
+    
+    //lets more requests be sent now that a response has arrived.
+    private void releaseRequest() {
+      boolean flush;
+      
+      synchronized(queued) {
+        if(inflight > 0) inflight--;
+        
+        //wait for half of the window to be free so the requests can be sent together.
+        flush = !queued.isEmpty() && inflight <= REQUEST_WINDOW / 2;
+      }
+      
+      if(!flush) return;
+      
+      try {
+        flushRequests();
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, null, ex);
       }
     }
     
-    private void receiveRegionResponse(byte[] pack) {
+    private void flushRequests() throws IOException {
+      List<RegionRequest> batch = new ArrayList<>();
       
+      synchronized(queued) {
+        while(inflight < REQUEST_WINDOW && !queued.isEmpty()) {
+          batch.add(queued.poll());
+          inflight++;
+        }
+      }
+      
+      if(batch.isEmpty()) return;
+      
+      try(MessageWriter out = new MessageWriter()) {
+        out.writeByte(batch.size() == 1 ? REG_REQ : REG_LIST);
+        for(RegionRequest request : batch)
+          writeRequest(out, request);
+        
+        sendMessage(out, null);
+      } catch (IOException ex) {
+        synchronized(queued) {
+          inflight -= batch.size();
+        }
+        
+        throw ex;
+      }
+    }
+    
+    private void writeRequest(MessageWriter out, RegionRequest request) {
+      writeLocation(out, request.world, request.coor);
+      
+      out.writeBoolean(request.hash != null);
+      if(request.hash != null) out.writeLong(request.hash);
+    }
+    
+    private RegionRequest readRequest(MessageReader in) throws IOException {
+      short wid = readWorldID(in);
+      Coordinate coor = readCoordinate(in);
+      Long hash = in.readBoolean() ? in.readLong() : null;
+      
+      return new RegionRequest(wid, coor, hash);
+    }
+    
+    private void writeLocation(MessageWriter out, short wid, Coordinate coor) {
+      out.writeVarInt(wid);
+      out.writeSignedVarInt(coor.x).writeSignedVarInt(coor.y).writeSignedVarInt(coor.z);
+    }
+    
+    private void readLocation(MessageReader in) throws IOException {
+      readWorldID(in);
+      readCoordinate(in);
+    }
+    
+    private short readWorldID(MessageReader in) throws IOException {
+      return (short) in.readVarInt();
+    }
+    
+    private Coordinate readCoordinate(MessageReader in) throws IOException {
+      return new Coordinate(in.readSignedVarInt(), in.readSignedVarInt(), in.readSignedVarInt());
     }
     
     protected static final int NAME_REQ = 0;
     protected static final int NAME_RES = 1;
     protected static final int REG_REQ = 2;
     protected static final int REG_RES = 3;
+    protected static final int REG_UNCHANGED = 4;
+    protected static final int REG_MISSING = 5;
+    protected static final int REG_FRAG = 6;
+    protected static final int REG_LIST = 7;
+    protected static final int REG_BATCH = 8;
+    protected static final int FRAGMENT_SIZE = 16 * 1024;
+    protected static final int MAX_RESPONSE = 16 * 1024 * 1024;
+    //number of region requests that can be waiting for a response.
+    protected static final int REQUEST_WINDOW = 32;
+    //the most bytes needed for the length of a message in a batch.
+    private static final int MAX_LENGTH_BYTES = 5;
+    
+    //requests waiting for room in the window, also guards inflight.
+    private final Deque<RegionRequest> queued;
+    private int inflight;
+    //responses that are still being received, only used by the network thread.
+    private final Map<ByteBuffer, byte[]> partial;
+    
+    //a request for a region with the hash of the cached copy if there is one.
+    private final class RegionRequest {
+      
+      public RegionRequest(short world, Coordinate coor, Long hash) {
+        this.world = world;
+        this.coor = coor;
+        this.hash = hash;
+      }
+      
+      public final short world;
+      public final Coordinate coor;
+      public final Long hash;
+    }
   }
 }
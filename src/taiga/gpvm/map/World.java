@@ -21,19 +21,30 @@ package taiga.gpvm.map;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import taiga.code.registration.NamedObject;
 import taiga.code.registration.ReusableObject;
-import taiga.code.util.ByteUtils;
 import taiga.gpvm.HardcodedValues;
+import taiga.gpvm.registry.TileEntry;
 import taiga.gpvm.util.geom.Coordinate;
 import taiga.gpvm.util.geom.Direction;
 
@@ -41,6 +52,10 @@ import taiga.gpvm.util.geom.Direction;
  * A uniform 3D grid of tiles.  This class can load and unloaded individual
  * {@link Region}.
  * 
+ * Looking up {@link Region}s is safe from any thread and normally does not
+ * block, the index is only locked when a lookup overlaps with a {@link Region}
+ * being added or removed.
+ * 
  * @author russell
  */
 public final class World extends ReusableObject {
@@ -53,9 +68,11 @@ public final class World extends ReusableObject {
   public World(String name) {
     super(name);
     
-    listeners = new HashSet<>();
-    regions = new HashMap<>();
-    regionlock = new ReentrantReadWriteLock();
+    listeners = new CopyOnWriteArraySet<>();
+    regions = new RegionTable();
+    regionlock = new StampedLock();
+    pending = new ConcurrentHashMap<>();
+    modified = ConcurrentHashMap.newKeySet();
   }
   
   /**
@@ -66,12 +83,70 @@ public final class World extends ReusableObject {
    * @return The region of the map containing the given coordinate or null.
    */
   public Region getRegion(Coordinate coor) {
-    Coordinate rc = coor.getRegionCoordinate();
-    return regions.get(rc);
+    return getRegion(coor.x, coor.y, coor.z);
+  }
+  
+  /**
+   * Returns a region of the map. Depending on loading mode this method may
+   * return null if the region is not currently loaded.
+   * 
+   * @param x The x coordinate of a block inside the region.
+   * @param y The y coordinate of a block inside the region.
+   * @param z The z coordinate of a block inside the region.
+   * @return The region of the map containing the given coordinate or null.
+   */
+  public Region getRegion(int x, int y, int z) {
+    long key = RegionTable.getKey(x, y, z);
+    
+    long stamp = regionlock.tryOptimisticRead();
+    Region result = regions.get(key);
+    if(regionlock.validate(stamp)) return result;
+    
+    //a region was added or removed during the lookup.
+    stamp = regionlock.readLock();
+    try {
+      return regions.get(key);
+    } finally {
+      regionlock.unlockRead(stamp);
+    }
+  }
+  
+  /**
+   * Returns the number of {@link Region}s that are currently loaded.
+   * 
+   * @return The number of loaded {@link Region}s.
+   */
+  public int getRegionCount() {
+    long stamp = regionlock.readLock();
+    try {
+      return regions.size();
+    } finally {
+      regionlock.unlockRead(stamp);
+    }
   }
   
+  /**
+   * Returns all of the currently loaded {@link Region}s.  The returned
+   * {@link Collection} is a snapshot and will not change as {@link Region}s
+   * are loaded or unloaded.  The same snapshot is shared between calls until
+   * the loaded {@link Region}s change.
+   * 
+   * @return An unmodifiable {@link Collection} of the loaded {@link Region}s.
+   */
   public Collection<Region> getRegions() {
-    return Collections.unmodifiableCollection(regions.values());
+    Collection<Region> result = snapshot;
+    if(result != null) return result;
+    
+    long stamp = regionlock.readLock();
+    try {
+      result = Collections.unmodifiableList(new ArrayList<>(regions.values()));
+      
+      //writers are excluded while this is held so the snapshot is current.
+      snapshot = result;
+      return result;
+    } finally {
+      regionlock.unlockRead(stamp);
+    }
   }
   
   /**
@@ -82,20 +157,42 @@ public final class World extends ReusableObject {
    * @return The {@link Tile} at the given coordinate.
    */
   public Tile getTile(Coordinate coor) {
-    Region reg = getRegion(coor);
+    return getTile(coor.x, coor.y, coor.z);
+  }
+  
+  /**
+   * Returns the {@link Tile} at the given coordinate.  If the tile is 
+   * no in a loaded chunk then this may return null depending on the loading mode.
+   * 
+   * @param x The x coordinate of the requested {@link Tile}.
+   * @param y The y coordinate of the requested {@link Tile}.
+   * @param z The z coordinate of the requested {@link Tile}.
+   * @return The {@link Tile} at the given coordinate.
+   */
+  public Tile getTile(int x, int y, int z) {
+    Region reg = getRegion(x, y, z);
     
     if(reg == null) return null;
     
-    byte x = (byte) (coor.x % Region.REGION_SIZE);
-    byte y = (byte) (coor.y % Region.REGION_SIZE);
-    byte z = (byte) (coor.z % Region.REGION_SIZE);
+    return new Tile(reg, Region.getLocalIndex(x, y, z));
+  }
+  
+  /**
+   * Returns the {@link TileEntry} of the {@link Tile} at the given coordinate.
+   * Unlike {@link #getTile(int, int, int)} this does not create any objects.
+   * Both air and {@link Tile}s that are not loaded result in null.
+   * 
+   * @param x The x coordinate of the requested {@link Tile}.
+   * @param y The y coordinate of the requested {@link Tile}.
+   * @param z The z coordinate of the requested {@link Tile}.
+   * @return The {@link TileEntry} at the given coordinate or null.
+   */
+  public TileEntry getTileType(int x, int y, int z) {
+    Region reg = getRegion(x, y, z);
     
-    //make sure that they are not negative
-    if(x < 0) x += Region.REGION_SIZE;
-    if(y < 0) y += Region.REGION_SIZE;
-    if(z < 0) z += Region.REGION_SIZE;
+    if(reg == null) return null;
     
-    return reg.getTile(x, y, z);
+    return reg.getTileType(Region.getLocalIndex(x, y, z));
   }
   
   /**
@@ -109,41 +206,29 @@ public final class World extends ReusableObject {
    */
   public Tile[] getNeighborTiles(Coordinate coor) {
     Tile[] tiles = new Tile[6];
-    Coordinate tar = new Coordinate();
-    
-    tar.x = coor.x + 1;
-    tar.y = coor.y;
-    tar.z = coor.z;
-    tiles[Direction.East.getIndex()] = getTile(tar);
-    
-    tar.x = coor.x - 1;
-    tar.y = coor.y;
-    tar.z = coor.z;
-    tiles[Direction.West.getIndex()] = getTile(tar);
-    
-    tar.x = coor.x;
-    tar.y = coor.y + 1;
-    tar.z = coor.z;
-    tiles[Direction.North.getIndex()] = getTile(tar);
-    
-    tar.x = coor.x;
-    tar.y = coor.y - 1;
-    tar.z = coor.z;
-    tiles[Direction.South.getIndex()] = getTile(tar);
-    
-    tar.x = coor.x;
-    tar.y = coor.y;
-    tar.z = coor.z + 1;
-    tiles[Direction.Up.getIndex()] = getTile(tar);
-    
-    tar.x = coor.x;
-    tar.y = coor.y;
-    tar.z = coor.z - 1;
-    tiles[Direction.Down.getIndex()] = getTile(tar);
+    
+    tiles[Direction.East.getIndex()] = getTile(coor.x + 1, coor.y, coor.z);
+    tiles[Direction.West.getIndex()] = getTile(coor.x - 1, coor.y, coor.z);
+    tiles[Direction.North.getIndex()] = getTile(coor.x, coor.y + 1, coor.z);
+    tiles[Direction.South.getIndex()] = getTile(coor.x, coor.y - 1, coor.z);
+    tiles[Direction.Up.getIndex()] = getTile(coor.x, coor.y, coor.z + 1);
+    tiles[Direction.Down.getIndex()] = getTile(coor.x, coor.y, coor.z - 1);
     
     return tiles;
   }
   
+  /**
+   * Creates a new {@link TileCursor} for moving through this {@link World}.
+   * This should be preferred over {@link #getTile(int, int, int)} and
+   * {@link #getNeighborTiles(taiga.gpvm.util.geom.Coordinate)} when visiting
+   * many nearby {@link Tile}s.
+   * 
+   * @return A new {@link TileCursor} located at the origin.
+   */
+  public TileCursor createCursor() {
+    return new TileCursor(this);
+  }
+  
   /**
    * Adds a {@link WorldListener} to this {@link World}.
    * @param list The {@link WorldListener} to add.
@@ -161,7 +246,35 @@ public final class World extends ReusableObject {
   }
   
   /**
-   * Loads the {@link Region} that contains the given {@link Coordinate}.
+   * Sets the {@link Executor} used to load and generate {@link Region}s for
+   * {@link #loadRegionAsync(taiga.gpvm.util.geom.Coordinate)}.  By default a
+   * pool shared by all {@link World}s with one thread per available processor
+   * is used.
+   * 
+   * @param exe The {@link Executor} to use, or null for the shared pool.
+   */
+  public void setLoadExecutor(Executor exe) {
+    loadexe = exe;
+  }
+  
+  /**
+   * Sets the {@link Executor} used to notify {@link WorldListener}s.  By
+   * default listeners are notified in order on a single thread shared by all
+   * {@link World}s, so they are never called concurrently no matter which
+   * thread loaded the {@link Region}.  A different {@link Executor} should
+   * also run the notifications one at a time and in order.
+   * 
+   * @param exe The {@link Executor} to use, or null for the shared thread.
+   */
+  public void setListenerExecutor(Executor exe) {
+    listenerexe = exe;
+  }
+  
+  /**
+   * Loads the {@link Region} that contains the given {@link Coordinate}.  On
+   * a server the {@link Region} is loaded on the calling thread, if it is
+   * already being loaded by another thread this waits for that to finish
+   * instead.  On a client this only requests the {@link Region}.
    * 
    * @param coor A {@link Coordinate} within the {@link Region} to load.
    */
@@ -169,30 +282,167 @@ public final class World extends ReusableObject {
     coor = coor.getRegionCoordinate();
     if(isLoaded(coor)) return;
     
-    if(isServer()) {
-      //try loading from a file first.
-      if(loadRegionFile(coor)) {
-        log.log(Level.FINE, REGION_FILE_LOADED, new Object[]{getFullName(), coor});
+    long key = RegionTable.getKey(coor);
+    CompletableFuture<Region> result = new CompletableFuture<>();
+    CompletableFuture<Region> prev = pending.putIfAbsent(key, result);
+    
+    //the region may have been added before this future was registered.
+    if(prev == null) {
+      Region reg = getRegion(coor);
+      
+      if(reg != null) {
+        pending.remove(key, result);
+        result.complete(reg);
         return;
       }
+    }
+    
+    if(isServer()) {
+      if(prev == null) {
+        runLoad(key, coor, result);
+      } else {
+        //someone else is loading it, any error will be reported there.
+        prev.exceptionally((ex) -> null).join();
+      }
+    } else if(prev == null) {
+      try {
+        sendRegionRequest(coor);
+      } catch (IOException ex) {
+        pending.remove(key, result);
+        result.completeExceptionally(ex);
+        log.log(Level.SEVERE, REQUEST_FAILED, new Object[]{getFullName(), coor});
+      }
+    }
+  }
+  
+  /**
+   * Starts loading the {@link Region} that contains the given {@link Coordinate}
+   * without blocking.  On a server the {@link Region} is loaded from a file or
+   * generated by the load {@link Executor}, on a client it is requested from
+   * the server.  Requests for a {@link Region} that is already being loaded
+   * will share the same {@link CompletableFuture}.
+   * 
+   * The returned {@link CompletableFuture} is completed as soon as the
+   * {@link Region} has been added, on whichever thread added it.  The
+   * {@link WorldListener}s are notified separately by the listener {@link Executor}
+   * so they may not have seen the {@link Region} yet.  If the {@link Region}
+   * could not be loaded it is completed exceptionally, or with null when there
+   * is no {@link MapGenerator}.
+   * 
+   * @param coor A {@link Coordinate} within the {@link Region} to load.
+   * @return A {@link CompletableFuture} for the loaded {@link Region}.
+   */
+  public CompletableFuture<Region> loadRegionAsync(Coordinate coor) {
+    return loadRegionsAsync(Collections.singletonList(coor)).get(0);
+  }
+  
+  /**
+   * Starts loading all of the {@link Region}s that contain the given
+   * {@link Coordinate}s without blocking.  This behaves the same as calling
+   * {@link #loadRegionAsync(taiga.gpvm.util.geom.Coordinate)} for each of them,
+   * except that on a client all of the requests are sent to the server
+   * together.
+   * 
+   * @param coors {@link Coordinate}s within the {@link Region}s to load.
+   * @return A {@link CompletableFuture} for each {@link Coordinate} in the
+   * same order.
+   */
+  public List<CompletableFuture<Region>> loadRegionsAsync(Collection<Coordinate> coors) {
+    List<CompletableFuture<Region>> results = new ArrayList<>(coors.size());
+    boolean server = isServer();
+    
+    //requests started by this call, only used by clients.
+    List<Coordinate> requests = new ArrayList<>();
+    List<Long> keys = new ArrayList<>();
+    
+    for(Coordinate coor : coors) {
+      Coordinate rcoor = coor.getRegionCoordinate();
       
-      //otherwise get the generator and generate the region.
-      NamedObject obj = getObject(HardcodedValues.NAME_MAP_GENERATOR);
+      Region reg = getRegion(rcoor);
+      if(reg != null) {
+        results.add(CompletableFuture.completedFuture(reg));
+        continue;
+      }
       
-      if(obj == null || !(obj instanceof MapGenerator)) {
-        log.log(Level.WARNING, NO_GENERATOR, getFullName());
-        return;
+      long key = RegionTable.getKey(rcoor);
+      CompletableFuture<Region> result = new CompletableFuture<>();
+      CompletableFuture<Region> prev = pending.putIfAbsent(key, result);
+      if(prev != null) {
+        results.add(prev);
+        continue;
       }
       
-      Region nreg = ((MapGenerator)obj).generateRegion(coor, this);
+      results.add(result);
       
-      addRegion(nreg);
+      //the region may have been added before this future was registered.
+      reg = getRegion(rcoor);
+      if(reg != null) {
+        pending.remove(key, result);
+        result.complete(reg);
+      } else if(server) {
+        try {
+          getLoadExecutor().execute(() -> runLoad(key, rcoor, result));
+        } catch (RuntimeException ex) {
+          pending.remove(key, result);
+          result.completeExceptionally(ex);
+        }
+      } else {
+        requests.add(rcoor);
+        keys.add(key);
+      }
+    }
+    
+    if(!requests.isEmpty()) {
+      try {
+        Universe.Comms comms = getObject(HardcodedValues.NAME_COMMS);
+        comms.requestRegions(this, requests, true);
+      } catch (IOException ex) {
+        for(Long key : keys) {
+          CompletableFuture<Region> result = pending.remove(key);
+          if(result != null) result.completeExceptionally(ex);
+        }
+      }
+    }
+    
+    return results;
+  }
+  
+  /**
+   * Unloads the {@link Region} that contains the given {@link Coordinate}.
+   * The {@link Region} is informed through {@link Region#unload()} and then
+   * the {@link WorldListener}s are notified.  Unsaved changes are handed to
+   * the {@link RegionSaver} of this {@link World} before the {@link Region} is
+   * removed.
+   * 
+   * @param coor A {@link Coordinate} within the {@link Region} to unload.
+   * @return Whether there was a {@link Region} to unload.
+   */
+  public boolean unloadRegion(Coordinate coor) {
+    long key = RegionTable.getKey(coor);
+    Region reg = getRegion(coor);
+    if(reg == null) return false;
+    
+    //changes are locked out so the last snapshot is queued before a reload can look for it.
+    synchronized(reg) {
+      saveUnloaded(reg);
       
-      log.log(Level.FINE, REGION_GENERATED, new Object[]{getFullName(), coor});
-      fireRegionLoaded(nreg);
-    } else {
-      sendRegionRequest(coor);
+      long stamp = regionlock.writeLock();
+      try {
+        //it may have been unloaded or replaced in the meantime.
+        if(regions.get(key) != reg) return false;
+        
+        regions.remove(key);
+        snapshot = null;
+      } finally {
+        regionlock.unlockWrite(stamp);
+      }
     }
+    
+    reg.unload();
+    fireRegionUnloaded(reg);
+    
+    log.log(Level.FINE, REGION_UNLOADED, new Object[]{getFullName(), reg.getLocation()});
+    return true;
   }
   
   /**
@@ -203,12 +453,7 @@ public final class World extends ReusableObject {
    * @return Whether the {@link Region} is loaded.
    */
   public boolean isLoaded(Coordinate coor) {
-    regionlock.readLock().lock();
-    try {
-      return regions.containsKey(coor);
-    } finally {
-      regionlock.readLock().unlock();
-    }
+    return getRegion(coor) != null;
   }
   
   /**
@@ -245,51 +490,172 @@ public final class World extends ReusableObject {
 
   @Override
   protected void resetObject() {
+    long stamp = regionlock.writeLock();
     try {
-      regionlock.writeLock().lock();
-      
       regions.clear();
-      listeners.clear();
+      snapshot = null;
     } finally {
-      regionlock.writeLock().unlock();
+      regionlock.unlockWrite(stamp);
     }
+    
+    //nothing will complete loads that were in progress.
+    for(CompletableFuture<Region> load : pending.values())
+      load.cancel(false);
+    pending.clear();
+    
+    listeners.clear();
+    modified.clear();
   }
   
   protected void setID(short id) {
     worldid = id;
   }
   
+  /**
+   * Adds a {@link Region} to this {@link World}, notifies the {@link WorldListener}s
+   * and completes any pending load for its location.  A {@link Region} already
+   * at the same location is replaced and unloaded the same way as by
+   * {@link #unloadRegion(taiga.gpvm.util.geom.Coordinate)}.
+   * 
+   * @param reg The {@link Region} that was loaded.
+   */
   protected void addRegion(Region reg) {
-    regionlock.writeLock().lock();
+    long key = RegionTable.getKey(reg.getLocation());
+    Region old;
+    
+    long stamp = regionlock.writeLock();
     try {
-      regions.put(reg.getLocation(), reg);
+      old = regions.put(reg);
+      snapshot = null;
     } finally {
-      regionlock.writeLock().unlock();
+      regionlock.unlockWrite(stamp);
     }
+    
+    if(old != reg) {
+      //the replaced region keeps its changes and listeners let go of it.
+      if(old != null) {
+        saveUnloaded(old);
+        old.unload();
+        fireRegionUnloaded(old);
+        
+        log.log(Level.FINE, REGION_UNLOADED, new Object[]{getFullName(), old.getLocation()});
+      }
+      
+      fireRegionLoaded(reg);
+    }
+    
+    CompletableFuture<Region> waiting = pending.remove(key);
+    if(waiting != null) waiting.complete(reg);
   }
   
-  private boolean loadRegionFile(Coordinate coor) {
-    return false;
+  private Executor getListenerExecutor() {
+    Executor exe = listenerexe;
+    
+    return exe == null ? EventThread.EXECUTOR : exe;
   }
-
-  private void sendRegionRequest(Coordinate coor) {
+  
+  private Executor getLoadExecutor() {
+    Executor exe = loadexe;
+    
+    return exe == null ? LoaderPool.POOL : exe;
+  }
+  
+  private void runLoad(long key, Coordinate coor, CompletableFuture<Region> result) {
     try {
-      byte[] data = new byte[15];
-      data[0] = Universe.Comms.REG_REQ;
+      //try loading from a file first.
+      Region nreg = loadRegionFile(coor);
       
-      ByteUtils.toBytes(coor.x, 1, data);
-      ByteUtils.toBytes(coor.y, 5, data);
-      ByteUtils.toBytes(coor.z, 9, data);
-      ByteUtils.toBytes(getWorldID(), 13, data);
+      if(nreg != null) {
+        log.log(Level.FINE, REGION_FILE_LOADED, new Object[]{getFullName(), coor});
+      } else {
+        //otherwise get the generator and generate the region.
+        NamedObject obj = getObject(HardcodedValues.NAME_MAP_GENERATOR);
+        
+        if(obj == null || !(obj instanceof MapGenerator)) {
+          log.log(Level.WARNING, NO_GENERATOR, getFullName());
+          
+          pending.remove(key, result);
+          result.complete(null);
+          return;
+        }
+        
+        nreg = ((MapGenerator)obj).generateRegion(coor, this);
+        log.log(Level.FINE, REGION_GENERATED, new Object[]{getFullName(), coor});
+      }
       
-      Universe.Comms comms = getObject(HardcodedValues.NAME_COMMS);
-      comms.sendMessage(data);
+      addRegion(nreg);
+    } catch (RuntimeException ex) {
+      log.log(Level.SEVERE, LOAD_FAILED, new Object[]{getFullName(), coor});
+      log.log(Level.SEVERE, null, ex);
+      
+      pending.remove(key, result);
+      result.completeExceptionally(ex);
+    }
+  }
+  
+  private Region loadRegionFile(Coordinate coor) {
+    //a copy that has not been written yet is newer than the one in the store.
+    RegionSaver rsaver = saver;
+    if(rsaver != null) {
+      Region unsaved = rsaver.getUnsaved(this, coor);
+      if(unsaved != null) return unsaved.snapshot();
+    }
+    
+    NamedObject obj = getObject(HardcodedValues.NAME_REGION_STORE);
+    if(obj == null || !(obj instanceof RegionStore)) return null;
+    
+    try {
+      return ((RegionStore) obj).loadRegion(coor, this);
     } catch (IOException ex) {
-      //TODO: handle this better
-      Logger.getLogger(World.class.getName()).log(Level.SEVERE, null, ex);
+      //fall back to generating the region.
+      log.log(Level.WARNING, FILE_LOAD_FAILED, new Object[]{getFullName(), coor});
+      log.log(Level.WARNING, null, ex);
+      return null;
     }
   }
 
+  private void sendRegionRequest(Coordinate coor) throws IOException {
+    sendRegionRequest(coor, true);
+  }
+  
+  /**
+   * Requests a {@link Region} from the server.  If there is a cached copy of
+   * the {@link Region} its hash is included so that the server can skip
+   * sending it again if it has not changed.
+   * 
+   * @param coor The location of the {@link Region}.
+   * @param usecache Whether to include the hash of a cached copy.
+   * @throws IOException If the request could not be sent.
+   */
+  void sendRegionRequest(Coordinate coor, boolean usecache) throws IOException {
+    Universe.Comms comms = getObject(HardcodedValues.NAME_COMMS);
+    comms.requestRegion(this, coor, usecache);
+  }
+  
+  /**
+   * Called when the server does not have a requested {@link Region}.  Any
+   * pending load for it is completed with null.
+   * 
+   * @param coor The location of the {@link Region}.
+   */
+  void regionMissing(Coordinate coor) {
+    CompletableFuture<Region> waiting = pending.remove(RegionTable.getKey(coor));
+    if(waiting != null) waiting.complete(null);
+  }
+
+  /**
+   * Called when the response for a requested {@link Region} could not be
+   * decoded.  Any pending load for it is completed exceptionally so that it
+   * can be requested again.
+   * 
+   * @param coor The location of the {@link Region}.
+   * @param ex The reason the {@link Region} could not be loaded.
+   */
+  void regionFailed(Coordinate coor, Throwable ex) {
+    CompletableFuture<Region> waiting = pending.remove(RegionTable.getKey(coor));
+    if(waiting != null) waiting.completeExceptionally(ex);
+  }
+  
   private boolean isServer() {
     Universe.Comms comms = getObject(HardcodedValues.NAME_COMMS);
     
@@ -299,26 +665,123 @@ public final class World extends ReusableObject {
       comms.getNetworkManager().isServer();
   }
   
+  private void saveUnloaded(Region reg) {
+    RegionSaver rsaver = saver;
+    if(rsaver != null) rsaver.saveUnloaded(reg);
+  }
+  
   private void fireRegionLoaded(Region reg) {
-    for(WorldListener list : listeners)
-      list.regionLoaded(reg);
+    if(listeners.isEmpty()) return;
+    
+    getListenerExecutor().execute(() -> {
+      for(WorldListener list : listeners)
+        list.regionLoaded(reg);
+    });
   }
   
   private void fireRegionUnloaded(Region reg) {
-    for(WorldListener list : listeners)
-      list.regionUnloaded(reg);
+    modified.remove(reg);
+    if(listeners.isEmpty()) return;
+    
+    getListenerExecutor().execute(() -> {
+      for(WorldListener list : listeners)
+        list.regionUnloaded(reg);
+    });
   }
   
-  private final Map<Coordinate, Region> regions;
-  private final ReadWriteLock regionlock;
+  /**
+   * Records that the given {@link Region} of this {@link World} has been changed
+   * so that it will be picked up by {@link #drainModified(java.util.Collection)}.
+   * 
+   * @param reg The {@link Region} that changed.
+   */
+  void markModified(Region reg) {
+    reg.markModified();
+    modified.add(reg);
+  }
+  
+  /**
+   * Sets the {@link RegionSaver} that saves the {@link Region}s of this
+   * {@link World}.  It is given the unsaved changes of {@link Region}s as they
+   * are unloaded, and is checked for changes that have not been written yet
+   * before loading a {@link Region} from the {@link RegionStore}.
+   * 
+   * @param saver The {@link RegionSaver} or null if there is not one.
+   */
+  void setRegionSaver(RegionSaver saver) {
+    this.saver = saver;
+  }
+  
+  /**
+   * Moves all of the {@link Region}s that have been modified since the last
+   * call into the given {@link Collection}.  Each {@link Region} is only
+   * reported once no matter how many times it was changed.
+   * 
+   * @param out The {@link Collection} to add the {@link Region}s to.
+   */
+  void drainModified(Collection<Region> out) {
+    for(Iterator<Region> it = modified.iterator(); it.hasNext(); ) {
+      out.add(it.next());
+      it.remove();
+    }
+  }
+  
+  private final RegionTable regions;
+  private final StampedLock regionlock;
+  //cached result of getRegions, cleared whenever the regions change.
+  private volatile Collection<Region> snapshot;
   private final Collection<WorldListener> listeners;
+  //loads that have been started but not finished, keyed like the regions.
+  private final ConcurrentMap<Long, CompletableFuture<Region>> pending;
+  private volatile Executor loadexe;
+  private volatile Executor listenerexe;
+  //regions changed by the mutator that have not been drained yet.
+  private final Set<Region> modified;
+  private volatile RegionSaver saver;
   private short worldid;
   
+  //only created once something actually loads a region asynchronously.
+  private static final class LoaderPool {
+    
+    public static final ExecutorService POOL;
+    
+    static {
+      AtomicInteger count = new AtomicInteger();
+      int threads = Runtime.getRuntime().availableProcessors();
+      
+      ThreadPoolExecutor exe = new ThreadPoolExecutor(threads, threads,
+        LOADER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), (r) -> {
+          Thread result = new Thread(r, "region-loader-" + count.incrementAndGet());
+          result.setDaemon(true);
+          return result;
+        });
+      exe.allowCoreThreadTimeOut(true);
+      
+      POOL = exe;
+    }
+  }
+  
+  //only created once a region is loaded or unloaded with a listener present.
+  private static final class EventThread {
+    
+    public static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor((r) -> {
+      Thread result = new Thread(r, "world-events");
+      result.setDaemon(true);
+      return result;
+    });
+  }
+  
   private static final String locprefix = World.class.getName().toLowerCase();
   
   private static final String NO_GENERATOR = locprefix + ".no_generator";
   private static final String REGION_GENERATED = locprefix + ".region_generated";
   private static final String REGION_FILE_LOADED = locprefix + ".region_file_loaded";
+  private static final String REGION_UNLOADED = locprefix + ".region_unloaded";
+  private static final String LOAD_FAILED = locprefix + ".load_failed";
+  private static final String FILE_LOAD_FAILED = locprefix + ".file_load_failed";
+  private static final String REQUEST_FAILED = locprefix + ".request_failed";
+  
+  private static final long LOADER_KEEP_ALIVE = 30;
   
   private static final Logger log = Logger.getLogger(locprefix, 
     System.getProperty("taiga.code.logging.text"));
@@ -32,7 +32,8 @@ public interface WorldListener {
    */
   public void regionLoaded(Region reg);
   /**
-   * Called when a {@link Region} is unloaded.
+   * Called when a {@link Region} is unloaded.  The {@link Region} will no longer
+   * be updated so no references to it should be kept.
    * 
    * @param reg The {@link Region} that was unloaded.
    */
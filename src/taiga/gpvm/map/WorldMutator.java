@@ -42,14 +42,22 @@ public class WorldMutator {
    * @param loc The {@link Coordinate} of the {@link Tile} to change.
    */
   public TileEntry setTileEntry(TileEntry ent, Coordinate loc) {
-    Tile t = getTile(loc);
-    if(t == null) return null;
+    Region reg = getRegion(loc);
+    if(reg == null) return null;
     
+    int index = Region.getLocalIndex(loc.x, loc.y, loc.z);
+    TileEntry old;
     
-    //set the type and reset the damage
-    TileEntry old = t.type;
-    t.type = ent;
-    t.damage = 0;
+    //writes are locked out while a snapshot of the region is taken.
+    synchronized(reg) {
+      //set the type and reset the damage
+      old = reg.getTileType(index);
+      reg.setTileType(index, ent);
+      reg.setDamage(index, 0);
+      
+      //the version has to change along with the data for snapshots to match.
+      target.markModified(reg);
+    }
     
     return old;
   }
@@ -61,11 +69,14 @@ public class WorldMutator {
    * @param loc The {@link Coordinate} of the {@link Tile} to change.
    */
   public Long setDamageValue(long damage, Coordinate loc) {
-    Tile t = getTile(loc);
-    if(t == null) return null;
+    Region reg = getRegion(loc);
+    if(reg == null) return null;
     
-    long old = t.damage;
-    t.damage = damage;
+    long old;
+    synchronized(reg) {
+      old = reg.setDamage(Region.getLocalIndex(loc.x, loc.y, loc.z), damage);
+      target.markModified(reg);
+    }
     
     return old;
   }
@@ -77,11 +88,17 @@ public class WorldMutator {
    * @param loc The {@link Coordinate} of the {@link Tile} to change.
    */
   public Long damageTile(long damage, Coordinate loc) {
-    Tile t = getTile(loc);
-    if(t == null) return null;
+    Region reg = getRegion(loc);
+    if(reg == null) return null;
     
-    long old = t.damage;
-    t.damage -= damage;
+    int index = Region.getLocalIndex(loc.x, loc.y, loc.z);
+    long old;
+    
+    synchronized(reg) {
+      old = reg.getDamage(index);
+      reg.setDamage(index, old - damage);
+      target.markModified(reg);
+    }
     
     return old;
   }
@@ -110,19 +127,19 @@ public class WorldMutator {
   
   private World target;
   
-  private Tile getTile(Coordinate loc) {
+  private Region getRegion(Coordinate loc) {
     if(target == null) {
       log.log(Level.WARNING, NO_TARGET);
       return null;
     }
     
-    Tile t = target.getTile(loc);
-    if(t == null) {
+    Region reg = target.getRegion(loc);
+    if(reg == null) {
       log.log(Level.WARNING, TILE_NOT_LOADED, new Object[] {target.getFullName(), loc});
       return null;
     }
     
-    return t;
+    return reg;
   }
   
   private static final String locprefix = WorldMutator.class.getName().toLowerCase();
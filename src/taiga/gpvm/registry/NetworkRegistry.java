@@ -20,12 +20,13 @@
 package taiga.gpvm.registry;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import taiga.code.networking.MessageReader;
+import taiga.code.networking.MessageWriter;
 import taiga.code.networking.NetworkManager;
 import taiga.code.networking.NetworkedObject;
-import taiga.code.util.ByteUtils;
 
 /**
  * A {@link Registry} that synchronizes itself to other {@link NetworkRegistry}s
@@ -56,15 +57,10 @@ public class NetworkRegistry<T extends RegistryEntry> extends Registry<T> {
     }
     
     public void syncEntry(String ename) throws IOException {
-      byte[] enbytes;
-      
-      enbytes = ename.getBytes(NetworkManager.NETWORK_CHARSET);
-      
-      byte[] data = new byte[enbytes.length + 1];
-      data[0] = SYNC_REQ;
-      System.arraycopy(enbytes, 0, data, 1, enbytes.length);
-      
-      sendMessage(data);
+      try(MessageWriter out = new MessageWriter()) {
+        out.writeByte(SYNC_REQ).writeString(ename);
+        sendMessage(out, null);
+      }
     }
 
     @Override
@@ -81,13 +77,24 @@ public class NetworkRegistry<T extends RegistryEntry> extends Registry<T> {
 
     @Override
     protected void messageRecieved(Object remote, byte[] pack) {
-      switch(pack[0]) {
-        case SYNC_REQ:
-          receiveSyncRequest(remote, pack);
-          break;
-        case SYNC_RES:
-          receiveSyncResponse(pack);
-          break;
+      messageRecieved(remote, ByteBuffer.wrap(pack));
+    }
+
+    @Override
+    protected void messageRecieved(Object remote, ByteBuffer pack) {
+      MessageReader in = new MessageReader(pack);
+      
+      try {
+        switch(in.readByte()) {
+          case SYNC_REQ:
+            receiveSyncRequest(remote, in);
+            break;
+          case SYNC_RES:
+            receiveSyncResponse(in);
+            break;
+        }
+      } catch (IOException ex) {
+        log.log(Level.WARNING, BAD_PACKET, new Object[] {remote, ex.getMessage()});
       }
     }
 
@@ -99,12 +106,9 @@ public class NetworkRegistry<T extends RegistryEntry> extends Registry<T> {
       //TODO: implement this
     }
     
-    private void receiveSyncResponse(byte[] pack) {
-      String ename;
-      
-      ename = new String(pack, 5, pack.length - 5, NetworkManager.NETWORK_CHARSET);
-      
-      int id = ByteUtils.toInteger(pack, 1);
+    private void receiveSyncResponse(MessageReader in) throws IOException {
+      int id = in.readVarInt();
+      String ename = in.readString();
       
       RegistryEntry entry = getEntry(ename);
       if(entry == null) {
@@ -116,10 +120,8 @@ public class NetworkRegistry<T extends RegistryEntry> extends Registry<T> {
       }
     }
     
-    private void receiveSyncRequest(Object remote, byte[] pack) {
-      String ename;
-      
-      ename = new String(pack, 1, pack.length - 1, NetworkManager.NETWORK_CHARSET);
+    private void receiveSyncRequest(Object remote, MessageReader in) throws IOException {
+      String ename = in.readString();
       
       RegistryEntry entry = getEntry(ename);
       if(entry == null) {
@@ -127,16 +129,9 @@ public class NetworkRegistry<T extends RegistryEntry> extends Registry<T> {
         return;
       }
       
-      int eid = entry.getID();
-      
-      byte[] data = new byte[pack.length + 4];
-      
-      data[0] = SYNC_RES;
-      ByteUtils.toBytes(eid, 1, data);
-      System.arraycopy(pack, 1, data, 5, pack.length - 1);
-      
-      try {
-        sendMessage(data, remote);
+      try(MessageWriter out = new MessageWriter()) {
+        out.writeByte(SYNC_RES).writeVarInt(entry.getID()).writeString(ename);
+        sendMessage(out, remote);
       } catch (IOException ex) {
         throw new UnsupportedOperationException();
       }
@@ -149,6 +144,7 @@ public class NetworkRegistry<T extends RegistryEntry> extends Registry<T> {
   private static final String locprefix = NetworkRegistry.class.getName().toLowerCase();
   
   private static final String SYNC_REQ_EX = locprefix + ".sync_req_ex";
+  private static final String BAD_PACKET = locprefix + ".bad_packet";
   private static final String ASSIGNED_ID = locprefix + ".assigned_id";
   private static final String UNKNOWN_ENTRY = locprefix + ".unknown_entry";
   
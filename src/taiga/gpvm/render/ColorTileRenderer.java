@@ -65,7 +65,7 @@ public class ColorTileRenderer implements TileRenderer {
       
       //south face
       Tile adj = info.adjacent[Direction.South.getIndex()];
-      if(adj == null || adj.type == null || !adj.type.opaque) {
+      if(adj == null || adj.getType() == null || !adj.getType().opaque) {
         vertices.add(corner);
         vertices.add(corner.add(1, 0, 0, new Coordinate()));
         vertices.add(corner.add(1, 0, 1, new Coordinate()));
@@ -75,7 +75,7 @@ public class ColorTileRenderer implements TileRenderer {
       
       //north face
       adj = info.adjacent[Direction.North.getIndex()];
-      if(adj == null || adj.type == null || !adj.type.opaque) {
+      if(adj == null || adj.getType() == null || !adj.getType().opaque) {
         vertices.add(corner.add(0, 1, 0, new Coordinate()));
         vertices.add(corner.add(1, 1, 0, new Coordinate()));
         vertices.add(corner.add(1, 1, 1, new Coordinate()));
@@ -85,7 +85,7 @@ public class ColorTileRenderer implements TileRenderer {
       
       //west face
       adj = info.adjacent[Direction.West.getIndex()];
-      if(adj == null || adj.type == null || !adj.type.opaque) {
+      if(adj == null || adj.getType() == null || !adj.getType().opaque) {
         vertices.add(corner);
         vertices.add(corner.add(0, 1, 0, new Coordinate()));
         vertices.add(corner.add(0, 1, 1, new Coordinate()));
@@ -95,7 +95,7 @@ public class ColorTileRenderer implements TileRenderer {
       
       //east face
       adj = info.adjacent[Direction.East.getIndex()];
-      if(adj == null || adj.type == null || !adj.type.opaque) {
+      if(adj == null || adj.getType() == null || !adj.getType().opaque) {
         vertices.add(corner.add(1, 0, 0, new Coordinate()));
         vertices.add(corner.add(1, 1, 0, new Coordinate()));
         vertices.add(corner.add(1, 1, 1, new Coordinate()));
@@ -105,7 +105,7 @@ public class ColorTileRenderer implements TileRenderer {
       
       //bottom face
       adj = info.adjacent[Direction.Down.getIndex()];
-      if(adj == null || adj.type == null || !adj.type.opaque) {
+      if(adj == null || adj.getType() == null || !adj.getType().opaque) {
         vertices.add(corner);
         vertices.add(corner.add(1, 0, 0, new Coordinate()));
         vertices.add(corner.add(1, 1, 0, new Coordinate()));
@@ -115,7 +115,7 @@ public class ColorTileRenderer implements TileRenderer {
   
       //top face
       adj = info.adjacent[Direction.Up.getIndex()];
-      if(adj == null || adj.type == null || !adj.type.opaque) {
+      if(adj == null || adj.getType() == null || !adj.getType().opaque) {
         vertices.add(corner.add(0, 0, 1, new Coordinate()));
         vertices.add(corner.add(1, 0, 1, new Coordinate()));
         vertices.add(corner.add(1, 1, 1, new Coordinate()));
@@ -25,7 +25,9 @@ import taiga.gpvm.HardcodedValues;
 import taiga.gpvm.map.Region;
 import taiga.gpvm.map.RegionListener;
 import taiga.gpvm.map.Tile;
+import taiga.gpvm.map.TileCursor;
 import taiga.gpvm.util.geom.Coordinate;
+import taiga.gpvm.util.geom.Direction;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,6 +36,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 import taiga.code.math.ReadableMatrix4;
 import taiga.code.registration.NamedObject;
+import taiga.gpvm.registry.TileEntry;
 import taiga.gpvm.registry.TileRenderingRegistry;
 
 /**
@@ -78,6 +81,21 @@ public final class RegionRenderer extends NamedObject implements RegionListener
     //clear all of the data
     entries.clear();
     rendindex.clear();
+    getCursor().refresh();
+    
+    //uniform regions are either empty or can only be visible on their surface.
+    if(reg.isUniform()) {
+      TileEntry type = reg.getUniformType();
+      
+      if(type == null) {
+        dirty = false;
+        return;
+      } else if(type.opaque) {
+        scanSurface();
+        dirty = false;
+        return;
+      }
+    }
     
     //construct the various entity infos.
     for(byte i = 0; i < Region.REGION_SIZE; i++) {
@@ -99,6 +117,7 @@ public final class RegionRenderer extends NamedObject implements RegionListener
   public void updateTile(Coordinate coor) {
     coor = coor.getRelativeCoordinate();
     
+    getCursor().refresh();
     updateTile(coor.x, coor.y, coor.z);
   }
   
@@ -114,29 +133,32 @@ public final class RegionRenderer extends NamedObject implements RegionListener
     TileRenderingRegistry rendreg = (TileRenderingRegistry) getObject(HardcodedValues.NAME_TILE_RENDERING_REGISTRY);
     
     //first check to see if the entity needs rendering
-    Tile tar = reg.getTile(x, y, z);
-    if(tar == null || tar.type == null) return true;
+    TileEntry type = reg.getTileType(x, y, z);
+    if(type == null) return true;
     
     //now check if the entity is visible
-    Coordinate loc = new Coordinate(x, y, z);
-    Tile[] ngbrs = reg.getWorld().getNeighborTiles(loc);
+    Coordinate loc = reg.getLocation();
+    TileCursor cur = getCursor().moveTo(loc.x + x, loc.y + y, loc.z + z);
     boolean visible = false;
-    for (Tile ngbr : ngbrs) {
-      if (ngbr == null ||
-        ngbr.type == null ||
-        !ngbr.type.opaque) {
+    for (Direction dir : DIRECTIONS) {
+      TileEntry ngbr = cur.getNeighborType(dir);
+      if (ngbr == null || !ngbr.opaque) {
         visible = true;
         break;
       }
     }
     if(!visible) return false;
     
+    Tile[] ngbrs = new Tile[DIRECTIONS.length];
+    for (Direction dir : DIRECTIONS)
+      ngbrs[dir.getIndex()] = cur.getNeighbor(dir);
+    
     //The entity can be rendered and is visible, now collect information on the entity.
     TileInfo info = new TileInfo();
     info.adjacent = ngbrs;
-    info.tile = tar;
-    info.absposition = reg.getLocation().add(x, y, z, new Coordinate());
-    info.rendentry = rendreg.getEntry(tar.type);
+    info.tile = cur.getTile();
+    info.absposition = loc.add(x, y, z, new Coordinate());
+    info.rendentry = rendreg.getEntry(type);
     
     //use the asociated renderer if avalaible otherwise use the default one.
     Class<? extends TileRenderer> renderer;
@@ -188,7 +210,7 @@ public final class RegionRenderer extends NamedObject implements RegionListener
     rendindex.put(info.absposition, info);
     dirtyents.put(newrend.getClass(), true);
     
-    return !info.tile.type.opaque;
+    return !info.tile.getType().opaque;
   }
 
   @Override
@@ -233,6 +255,29 @@ public final class RegionRenderer extends NamedObject implements RegionListener
   
   private boolean dirty;
   private final Region reg;
+  private TileCursor cursor;
+  
+  private TileCursor getCursor() {
+    if(cursor == null)
+      cursor = reg.createCursor();
+    
+    return cursor;
+  }
+  
+  private void scanSurface() {
+    final int last = Region.REGION_SIZE - 1;
+    
+    for(byte i = 0; i < Region.REGION_SIZE; i++) {
+      for(byte j = 0; j < Region.REGION_SIZE; j++) {
+        //interior tiles only need the top and bottom layers.
+        int step = (i == 0 || i == last || j == 0 || j == last) ? 1 : last;
+        
+        for(int k = 0; k < Region.REGION_SIZE; k += step) {
+          updateTile(i, j, k);
+        }
+      }
+    }
+  }
   
   private TileRenderer getRenderer(Class<? extends TileRenderer> clazz) {
     TileRenderer rend = null;
@@ -268,6 +313,8 @@ public final class RegionRenderer extends NamedObject implements RegionListener
   private final Map<Class<? extends TileRenderer>, Boolean> dirtyents;
   private final Map<Class<? extends TileRenderer>, TileRenderer> instances;
   
+  private static final Direction[] DIRECTIONS = Direction.values();
+  
   private static final String locprefix = RegionRenderer.class.getName().toLowerCase();
   
   private static final Logger log = Logger.getLogger(locprefix,
@@ -24,6 +24,8 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 import taiga.code.math.Matrix4;
 import taiga.code.math.ReadableMatrix4;
@@ -58,6 +60,7 @@ public final class WorldRenderer extends SceneRoot implements WorldListener, Wor
     map = world;
     renderers = new HashMap<>();
     viewables = new ArrayList<>();
+    changes = new ConcurrentLinkedQueue<>();
     entrend = new HashMap<>();
     
     world.addListener(this);
@@ -71,6 +74,8 @@ public final class WorldRenderer extends SceneRoot implements WorldListener, Wor
   private final Collection<Coordinate> viewables;
   private final Map<EntityRenderer, Collection<Entity>> entrend;
   private final Map<Coordinate, RegionRenderer> renderers;
+  //region changes from the world waiting for the rendering thread.
+  private final Queue<Runnable> changes;
   
   private EntityRenderingRegistry entreg;
   private EntityManager entmng;
@@ -85,6 +90,9 @@ public final class WorldRenderer extends SceneRoot implements WorldListener, Wor
   protected void updateRenderable() {
     super.updateRenderable();
     
+    for(Runnable change = changes.poll(); change != null; change = changes.poll())
+      change.run();
+    
     for(RegionRenderer reg : renderers.values())
       reg.update();
   }
@@ -124,13 +132,14 @@ public final class WorldRenderer extends SceneRoot implements WorldListener, Wor
 
   @Override
   public void regionLoaded(Region reg) {
-    RegionRenderer region = new RegionRenderer(reg);
-    renderers.put(region.getLocation(), region);
-    addChild(region);
+    //the world may notify listeners from any thread so the renderers are only changed during updates.
+    changes.add(() -> addRegion(reg));
   }
 
   @Override
   public void regionUnloaded(Region reg) {
+    Coordinate loc = reg.getLocation();
+    changes.add(() -> removeRegion(loc));
   }
 
   @Override
@@ -143,6 +152,20 @@ public final class WorldRenderer extends SceneRoot implements WorldListener, Wor
     reg.updateTile(change.location);
   }
   
+  private void addRegion(Region reg) {
+    //a region may be reported again if it loaded while this renderer was created.
+    removeRegion(reg.getLocation());
+    
+    RegionRenderer region = new RegionRenderer(reg);
+    renderers.put(region.getLocation(), region);
+    addChild(region);
+  }
+  
+  private void removeRegion(Coordinate loc) {
+    RegionRenderer region = renderers.remove(loc);
+    if(region != null) removeChild(region);
+  }
+  
   private void updateRendFrustrum(ReadableMatrix4 proj) {
     Matrix4 inv = new Matrix4(proj);
     
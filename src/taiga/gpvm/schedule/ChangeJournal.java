@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2014 Russell Smith.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3.0 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+
+package taiga.gpvm.schedule;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import taiga.code.registration.NamedObject;
+import taiga.gpvm.HardcodedValues;
+import taiga.gpvm.map.RegionSaver;
+import taiga.gpvm.map.World;
+import taiga.gpvm.registry.TileEntry;
+import taiga.gpvm.registry.TileRegistry;
+import taiga.gpvm.util.geom.Coordinate;
+
+/**
+ * An append only log of the {@link WorldChange}s applied by the {@link WorldUpdater}.
+ * Modified {@link taiga.gpvm.map.Region}s are only saved occasionally, so
+ * the journal allows changes made since then to be recovered after a crash.
+ * 
+ * Each update's changes are written as a single checksummed block, and are
+ * forced to the disk at most once per sync interval.  Changes are recorded by
+ * their result rather than the request, e.g. damage is recorded as the new
+ * damage value, so replaying a change more than once has no extra effect.
+ * 
+ * The journal is split into segments.  A checkpoint starts a new segment and
+ * asks the {@link RegionSaver} to save every modified {@link taiga.gpvm.map.Region}.
+ * Once that is done the older segments are no longer needed and are deleted.
+ * Segments that were read before any of their changes could be replayed,
+ * because their {@link World} did not exist yet, are kept until the changes
+ * have been replayed with {@link #readWorld(taiga.gpvm.map.World, taiga.gpvm.registry.TileRegistry)}.
+ * 
+ * @author russell
+ */
+public class ChangeJournal extends NamedObject {
+
+  /**
+   * Creates a new {@link ChangeJournal} in the given directory that is synced
+   * every update and checkpointed every minute.
+   * 
+   * @param dir The directory for the journal segments.
+   */
+  public ChangeJournal(File dir) {
+    this(dir, DEFAULT_SYNC_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+  }
+  
+  /**
+   * Creates a new {@link ChangeJournal} in the given directory.
+   * 
+   * @param dir The directory for the journal segments.
+   * @param syncinterval The minimum time between forcing the journal to the
+   * disk in milliseconds, 0 syncs after every update.
+   * @param checkpointinterval The time between checkpoints in milliseconds.
+   */
+  public ChangeJournal(File dir, long syncinterval, long checkpointinterval) {
+    super(HardcodedValues.NAME_CHANGE_JOURNAL);
+    
+    this.dir = dir;
+    this.syncinterval = syncinterval;
+    this.checkpointinterval = checkpointinterval;
+    
+    buffer = new ByteArrayOutputStream(INITIAL_BUFFER);
+    out = new DataOutputStream(buffer);
+    worldindex = new IdentityHashMap<>();
+    unreplayed = new HashSet<>();
+    crc = new CRC32();
+  }
+  
+  /**
+   * Reads all of the {@link WorldChange}s in the existing journal segments in
+   * the order they were written.  A damaged block at the end of a segment,
+   * as left by a crash while writing it, ends that segment.
+   * 
+   * @param worlds Looks up {@link World}s by name, changes for unknown
+   * {@link World}s are skipped and can be read later with
+   * {@link #readWorld(taiga.gpvm.map.World, taiga.gpvm.registry.TileRegistry)}.
+   * @param tiles The {@link TileRegistry} used to look up {@link TileEntry}s.
+   * @return The recorded {@link WorldChange}s.
+   * @throws IOException If the journal could not be read.
+   */
+  public List<WorldChange> read(Function<String, World> worlds, TileRegistry tiles) throws IOException {
+    List<WorldChange> result = new ArrayList<>();
+    Set<String> skipped = new HashSet<>();
+    
+    for(File file : getSegments()) {
+      try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+        readSegment(new DataInputStream(in), worlds, tiles, result, skipped);
+      }
+    }
+    
+    synchronized(this) {
+      unreplayed.clear();
+      unreplayed.addAll(skipped);
+    }
+    
+    log.log(Level.INFO, JOURNAL_READ, new Object[]{result.size(), dir});
+    return result;
+  }
+  
+  /**
+   * Checks whether the journal holds changes for a {@link World} with the
+   * given name that were skipped by {@link #read(java.util.function.Function, taiga.gpvm.registry.TileRegistry)}
+   * and have not been read since.
+   * 
+   * @param world The name of the {@link World}.
+   * @return Whether there are changes waiting to be replayed.
+   */
+  public synchronized boolean hasUnreplayed(String world) {
+    return unreplayed.contains(world);
+  }
+  
+  /**
+   * Reads the changes for a {@link World} that did not exist when the journal
+   * was read.  Only the segments from before {@link #open()} are read, and
+   * once the changes have been applied {@link #markReplayed(taiga.gpvm.map.World)}
+   * should be called so that those segments can be deleted.
+   * 
+   * @param world The {@link World} to read the changes for.
+   * @param tiles The {@link TileRegistry} used to look up {@link TileEntry}s.
+   * @return The recorded {@link WorldChange}s for the {@link World}.
+   * @throws IOException If the journal could not be read.
+   */
+  public List<WorldChange> readWorld(World world, TileRegistry tiles) throws IOException {
+    List<WorldChange> result = new ArrayList<>();
+    long end;
+    
+    synchronized(this) {
+      end = opened;
+    }
+    
+    for(File file : getSegments()) {
+      if(getSequence(file) >= end) break;
+      
+      try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+        readSegment(new DataInputStream(in), (name) -> name.equals(world.name) ? world : null, tiles, result, null);
+      }
+    }
+    
+    return result;
+  }
+  
+  /**
+   * Records that the changes read by {@link #readWorld(taiga.gpvm.map.World, taiga.gpvm.registry.TileRegistry)}
+   * have been applied.  Once no {@link World} is waiting for its changes the
+   * next checkpoint deletes the old segments.
+   * 
+   * @param world The {@link World} whose changes were replayed.
+   */
+  public synchronized void markReplayed(World world) {
+    unreplayed.remove(world.name);
+  }
+  
+  /**
+   * Opens a new segment after any existing ones for writing.
+   * 
+   * @throws IOException If the segment could not be created.
+   */
+  public synchronized void open() throws IOException {
+    if(!dir.isDirectory() && !dir.mkdirs())
+      throw new IOException("Could not create directory " + dir);
+    
+    File[] existing = getSegments();
+    segment = existing.length == 0 ? 0 : getSequence(existing[existing.length - 1]) + 1;
+    opened = segment;
+    
+    startSegment();
+    lastcheckpoint = System.currentTimeMillis();
+  }
+  
+  /**
+   * Records the given {@link WorldChange}s that were just applied.  Changes to
+   * {@link taiga.gpvm.map.Region}s that are not loaded were not applied and
+   * are skipped.
+   * 
+   * @param changes The {@link WorldChange}s that were applied.
+   * @param previous The values returned when applying each {@link WorldChange}.
+   * @throws IOException If the changes could not be written.
+   */
+  public synchronized void append(List<WorldChange> changes, List<Object> previous) throws IOException {
+    if(channel == null) throw new IOException(getFullName() + " is not open.");
+    
+    buffer.reset();
+    
+    for(int i = 0; i < changes.size(); i++)
+      writeChange(changes.get(i), previous.get(i));
+    
+    if(buffer.size() > 0) {
+      byte[] payload = buffer.toByteArray();
+      crc.reset();
+      crc.update(payload, 0, payload.length);
+      
+      ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER + payload.length);
+      block.putInt(payload.length);
+      block.putInt((int) crc.getValue());
+      block.put(payload);
+      block.flip();
+      
+      while(block.hasRemaining())
+        channel.write(block);
+      
+      unsynced = true;
+    }
+    
+    long now = System.currentTimeMillis();
+    if(unsynced && now - lastsync >= syncinterval) {
+      channel.force(false);
+      
+      unsynced = false;
+      lastsync = now;
+    }
+  }
+  
+  /**
+   * Checks whether it is time for another checkpoint.
+   * 
+   * @return Whether {@link #checkpoint()} should be called.
+   */
+  public synchronized boolean isCheckpointDue() {
+    return channel != null && !checkpointing &&
+      System.currentTimeMillis() - lastcheckpoint >= checkpointinterval;
+  }
+  
+  /**
+   * Starts a new segment and has the {@link RegionSaver} save all modified
+   * {@link taiga.gpvm.map.Region}s.  The previous segments are deleted once
+   * the save has finished, except for those that still hold changes waiting
+   * to be replayed.  This should be called between updates so that every
+   * change in the previous segments has already been applied.
+   */
+  public void checkpoint() {
+    RegionSaver saver = getObject(HardcodedValues.NAME_REGION_SAVER);
+    long first;
+    long keep;
+    
+    synchronized(this) {
+      if(checkpointing || channel == null) return;
+      lastcheckpoint = System.currentTimeMillis();
+      
+      if(saver == null) {
+        log.log(Level.WARNING, NO_SAVER, getFullName());
+        return;
+      }
+      
+      try {
+        closeSegment();
+        segment++;
+        startSegment();
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, null, ex);
+        return;
+      }
+      
+      first = segment;
+      checkpointing = true;
+      
+      //segments with changes that have not been replayed yet have to stay.
+      keep = unreplayed.isEmpty() ? 0 : opened;
+    }
+    
+    saver.saveAll().whenComplete((v, ex) -> {
+      if(ex == null) {
+        deleteSegments(keep, first);
+        log.log(Level.FINE, CHECKPOINT_DONE, first);
+      } else {
+        log.log(Level.WARNING, CHECKPOINT_FAILED, getFullName());
+        log.log(Level.WARNING, null, ex);
+      }
+      
+      synchronized(this) {
+        checkpointing = false;
+      }
+    });
+  }
+  
+  /**
+   * Forces any remaining changes to the disk and closes the current segment.
+   * 
+   * @throws IOException If the segment could not be closed.
+   */
+  public synchronized void close() throws IOException {
+    if(channel != null) closeSegment();
+  }
+  
+  private final File dir;
+  private final long syncinterval;
+  private final long checkpointinterval;
+  private final ByteArrayOutputStream buffer;
+  private final DataOutputStream out;
+  //index of each world name written to the current segment, worlds only compare their network ids.
+  private final Map<World, Integer> worldindex;
+  //names of worlds with changes in the old segments that have not been replayed.
+  private final Set<String> unreplayed;
+  private final CRC32 crc;
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private long segment;
+  //the first segment written since opening, older ones were read on startup.
+  private long opened;
+  private long lastsync;
+  private long lastcheckpoint;
+  private boolean unsynced;
+  private boolean checkpointing;
+  
+  private void writeChange(WorldChange change, Object previous) throws IOException {
+    //changes to unloaded regions were not applied.
+    if(!change.world.isLoaded(change.location)) return;
+    
+    long damage;
+    switch(change.type) {
+      case ChangeType:
+        writeHeader(TAG_TYPE, change);
+        
+        TileEntry ent = (TileEntry) change.data[0];
+        out.writeInt(ent == null ? -1 : ent.getID());
+        return;
+      case SetDamage:
+        damage = (Long) change.data[0];
+        break;
+      case Damage:
+        if(previous == null) return;
+        damage = (Long) previous - (Long) change.data[0];
+        break;
+      default:
+        return;
+    }
+    
+    writeHeader(TAG_DAMAGE, change);
+    out.writeLong(damage);
+  }
+  
+  private void writeHeader(int tag, WorldChange change) throws IOException {
+    Integer index = worldindex.get(change.world);
+    
+    //the name of each world is only written once per segment.
+    if(index == null) {
+      index = worldindex.size();
+      worldindex.put(change.world, index);
+      
+      byte[] name = change.world.name.getBytes(StandardCharsets.UTF_8);
+      out.writeByte(TAG_WORLD);
+      out.writeShort(index);
+      out.writeShort(name.length);
+      out.write(name);
+    }
+    
+    Coordinate loc = change.location;
+    out.writeByte(tag);
+    out.writeShort(index);
+    out.writeInt(loc.x);
+    out.writeInt(loc.y);
+    out.writeInt(loc.z);
+  }
+  
+  private void readSegment(DataInputStream in, Function<String, World> worlds, TileRegistry tiles, List<WorldChange> result, Set<String> skipped) throws IOException {
+    List<World> index = new ArrayList<>();
+    CRC32 check = new CRC32();
+    
+    while(true) {
+      byte[] payload;
+      
+      try {
+        int length = in.readInt();
+        int sum = in.readInt();
+        if(length < 0 || length > MAX_BLOCK) return;
+        
+        payload = new byte[length];
+        in.readFully(payload);
+        
+        check.reset();
+        check.update(payload, 0, length);
+        if((int) check.getValue() != sum) return;
+      } catch (EOFException ex) {
+        return;
+      }
+      
+      DataInputStream block = new DataInputStream(new ByteArrayInputStream(payload));
+      while(block.available() > 0) {
+        int tag = block.readByte();
+        
+        if(tag == TAG_WORLD) {
+          int id = block.readShort();
+          byte[] name = new byte[block.readShort()];
+          block.readFully(name);
+          
+          String wname = new String(name, StandardCharsets.UTF_8);
+          World world = worlds.apply(wname);
+          if(world == null && skipped != null) skipped.add(wname);
+          
+          while(index.size() <= id) index.add(null);
+          index.set(id, world);
+          continue;
+        }
+        
+        int id = block.readShort();
+        World world = id < index.size() ? index.get(id) : null;
+        Coordinate loc = new Coordinate(block.readInt(), block.readInt(), block.readInt());
+        
+        if(tag == TAG_TYPE) {
+          int type = block.readInt();
+          TileEntry ent = type < 0 || tiles == null ? null : tiles.getEntry(type);
+          
+          if(world != null) result.add(new WorldChange(world, loc, ent, 0));
+        } else if(tag == TAG_DAMAGE) {
+          long damage = block.readLong();
+          
+          if(world != null) result.add(new WorldChange(world, loc, damage, true, 0));
+        } else {
+          throw new IOException("Unknown journal record " + tag);
+        }
+      }
+    }
+  }
+  
+  private void startSegment() throws IOException {
+    file = new RandomAccessFile(getSegmentFile(segment), "rw");
+    channel = file.getChannel();
+    channel.position(channel.size());
+    
+    worldindex.clear();
+    lastsync = System.currentTimeMillis();
+  }
+  
+  private void closeSegment() throws IOException {
+    try {
+      channel.force(false);
+    } finally {
+      file.close();
+      
+      file = null;
+      channel = null;
+      unsynced = false;
+    }
+  }
+  
+  private void deleteSegments(long start, long end) {
+    for(File old : getSegments()) {
+      long seq = getSequence(old);
+      if(seq < start || seq >= end) continue;
+      
+      if(!old.delete())
+        log.log(Level.WARNING, DELETE_FAILED, old);
+    }
+  }
+  
+  private File[] getSegments() {
+    File[] result = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+    if(result == null) return new File[0];
+    
+    Arrays.sort(result, (a, b) -> Long.compare(getSequence(a), getSequence(b)));
+    return result;
+  }
+  
+  private File getSegmentFile(long seq) {
+    return new File(dir, SEGMENT_PREFIX + seq + SEGMENT_SUFFIX);
+  }
+  
+  private static long getSequence(File segment) {
+    String name = segment.getName();
+    
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+  
+  private static final int TAG_WORLD = 0;
+  private static final int TAG_DAMAGE = 1;
+  private static final int TAG_TYPE = 2;
+  
+  //length and checksum
+  private static final int BLOCK_HEADER = 8;
+  //anything larger than this is treated as a damaged block.
+  private static final int MAX_BLOCK = 1 << 26;
+  private static final int INITIAL_BUFFER = 4096;
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  
+  private static final long DEFAULT_SYNC_INTERVAL = 0;
+  private static final long DEFAULT_CHECKPOINT_INTERVAL = 60000;
+  
+  private static final String locprefix = ChangeJournal.class.getName().toLowerCase();
+  
+  private static final String JOURNAL_READ = locprefix + ".journal_read";
+  private static final String NO_SAVER = locprefix + ".no_saver";
+  private static final String CHECKPOINT_DONE = locprefix + ".checkpoint_done";
+  private static final String CHECKPOINT_FAILED = locprefix + ".checkpoint_failed";
+  private static final String DELETE_FAILED = locprefix + ".delete_failed";
+  
+  private static final Logger log = Logger.getLogger(locprefix, 
+    System.getProperty("taiga.code.logging.text"));
+}
@@ -35,11 +35,11 @@ public class WorldTile {
   }
   
   public long getDamage() {
-    return tile.damage;
+    return tile.getDamage();
   }
   
   public TileEntry getType() {
-    return tile.type;
+    return tile.getType();
   }
   
   public void setType(TileEntry type) {
@@ -19,6 +19,7 @@
 
 package taiga.gpvm.schedule;
 
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -30,6 +31,7 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import taiga.code.networking.NetworkManager;
 import taiga.code.networking.NetworkedObject;
 import taiga.code.registration.NamedSystem;
 import taiga.code.util.Updateable;
@@ -39,6 +41,7 @@ import taiga.gpvm.map.Universe;
 import taiga.gpvm.map.UniverseListener;
 import taiga.gpvm.map.World;
 import taiga.gpvm.map.WorldMutator;
+import taiga.gpvm.registry.TileRegistry;
 import taiga.gpvm.util.geom.Coordinate;
 
 /**
@@ -54,7 +57,7 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
   public WorldUpdater() {
     super(HardcodedValues.NAME_WORLD_UPDATER);
     
-    addChild(new WorldComms());
+    comms = addChild(new WorldComms());
     
     changes = new PriorityQueue<>();
     ups = new ArrayList<>(0);
@@ -73,6 +76,9 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
       timer = new Timer(getFullName());
     }
     
+    journal = getObject(HardcodedValues.NAME_CHANGE_JOURNAL);
+    if(journal != null) openJournal();
+    
     updatetask = new TimerTask() {
       @Override
       public void run() {
@@ -82,6 +88,10 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
     
     timer.scheduleAtFixedRate(updatetask, 0, HardcodedValues.UPDATE_DELAY);
     
+    //messages are sent at the end of each update from now on.
+    NetworkManager manager = comms.getNetworkManager();
+    if(manager != null) manager.setBatching(true);
+    
     log.log(Level.INFO, THREAD_STARTED);
   }
 
@@ -93,6 +103,20 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
     
     timer.cancel();
     
+    NetworkManager manager = comms.getNetworkManager();
+    if(manager != null) manager.setBatching(false);
+    
+    if(journal != null) {
+      try {
+        journal.close();
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, JOURNAL_FAILED);
+        log.log(Level.SEVERE, null, ex);
+      }
+      
+      journal = null;
+    }
+    
     updatetask = null;
     timer = null;
     log.log(Level.INFO, THREAD_STOPPED);
@@ -114,6 +138,10 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
     } catch (MutatorPresentException ex) {
       throw new IllegalStateException(ex);
     }
+    
+    //the journal may already have been read without this world.
+    ChangeJournal jour = journal;
+    if(jour != null && jour.hasUnreplayed(world.name)) replayJournal(jour, world);
   }
   
   /**
@@ -155,8 +183,10 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
     listeners.remove(list);
   }
   
+  private final WorldComms comms;
   private Timer timer;
   private TimerTask updatetask;
+  private volatile ChangeJournal journal;
   private long updatecount;
   private final PriorityQueue<WorldChange> changes;
   private final Collection<UpdateStruct> ups;
@@ -190,12 +220,82 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
     
     List<Object> old = applyChanges(ready);
     
+    if(journal != null) {
+      try {
+        journal.append(ready, old);
+      } catch (IOException ex) {
+        log.log(Level.SEVERE, JOURNAL_FAILED);
+        log.log(Level.SEVERE, null, ex);
+      }
+      
+      if(journal.isCheckpointDue()) journal.checkpoint();
+    }
+    
     fireEvents(ready, old);
     processUpdateables();
     
+    //send everything produced during this update together.
+    NetworkManager manager = comms.getNetworkManager();
+    if(manager != null) manager.flush();
+    
     updatecount++;
   }
   
+  private void openJournal() {
+    TileRegistry tiles = getObject(HardcodedValues.NAME_TILE_REGISTRY);
+    
+    try {
+      //anything left in the journal was not saved before the last shutdown.
+      List<WorldChange> lost = journal.read(this::getWorld, tiles);
+      replay(lost);
+      
+      journal.open();
+      
+      if(!lost.isEmpty()) {
+        log.log(Level.INFO, CHANGES_REPLAYED, lost.size());
+        journal.checkpoint();
+      }
+    } catch (IOException ex) {
+      log.log(Level.SEVERE, JOURNAL_FAILED);
+      log.log(Level.SEVERE, null, ex);
+      
+      journal = null;
+    }
+  }
+  
+  private void replayJournal(ChangeJournal jour, World world) {
+    TileRegistry tiles = getObject(HardcodedValues.NAME_TILE_REGISTRY);
+    
+    try {
+      List<WorldChange> lost = jour.readWorld(world, tiles);
+      replay(lost);
+      jour.markReplayed(world);
+      
+      log.log(Level.INFO, CHANGES_REPLAYED, lost.size());
+    } catch (IOException ex) {
+      //the segments are kept so the changes can be replayed after a restart.
+      log.log(Level.SEVERE, JOURNAL_FAILED);
+      log.log(Level.SEVERE, null, ex);
+    }
+  }
+  
+  private void replay(List<WorldChange> lost) {
+    for(WorldChange change : lost) {
+      WorldMutator mutator = mutators.get(change.world);
+      if(mutator == null) continue;
+      
+      change.world.loadRegion(change.location);
+      change.applyChange(mutator);
+    }
+  }
+  
+  private World getWorld(String name) {
+    for(World world : mutators.keySet())
+      if(world.name.equals(name)) return world;
+    
+    return null;
+  }
+  
   private void fireEvents(List<WorldChange> chs, List<Object> prev) {
     for(int i = 0; i < chs.size(); i++) {
       for(WorldChangeListener list : listeners) {
@@ -269,6 +369,8 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
   
   private static final String THREAD_STARTED = locprefix + ".thread_started";
   private static final String THREAD_STOPPED = locprefix + ".thread_stopped";
+  private static final String CHANGES_REPLAYED = locprefix + ".changes_replayed";
+  private static final String JOURNAL_FAILED = locprefix + ".journal_failed";
   
   private static final Logger log = Logger.getLogger(locprefix, 
     System.getProperty("taiga.code.logging.text"));
@@ -294,7 +396,10 @@ public class WorldUpdater extends NamedSystem implements UniverseListener {
     }
 
     @Override
-    protected void managerAttached() {}
+    protected void managerAttached() {
+      //batch messages if the updates have already started.
+      if(updatetask != null) getNetworkManager().setBatching(true);
+    }
     
   }
 }